@@ -0,0 +1,106 @@
+package org.antlr.intellij.adaptor;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/** A bounded pool of idle lexers or parsers of one language, kept by its
+ *  {@link ANTLRRecognizerRuntime}.
+ *
+ *  {@link #borrow()} never blocks: when no recognizer is idle a new one is
+ *  created. {@link #release} resets the recognizer, dropping its input and
+ *  listeners, and keeps it for reuse unless {@link #getMaxIdle()} are
+ *  already idle. A borrowed recognizer must be used by one thread at a
+ *  time and released at most once.
+ */
+public class ANTLRRecognizerPool<T> {
+	private final Supplier<? extends T> factory;
+	private final Consumer<? super T> reset;
+	private final Deque<T> idle = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private volatile int maxIdle;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong creations = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	public ANTLRRecognizerPool(Supplier<? extends T> factory, Consumer<? super T> reset, int maxIdle) {
+		this.factory = factory;
+		this.reset = reset;
+		setMaxIdle(maxIdle);
+	}
+
+	/** Take an idle recognizer or create one. */
+	public T borrow() {
+		borrows.incrementAndGet();
+		T recognizer = idle.pollFirst();
+		if ( recognizer!=null ) {
+			idleCount.decrementAndGet();
+			return recognizer;
+		}
+		creations.incrementAndGet();
+		return factory.get();
+	}
+
+	/** Reset recognizer and keep it for reuse if there's room. */
+	public void release(T recognizer) {
+		reset.accept(recognizer);
+		if ( idleCount.incrementAndGet()<=maxIdle ) {
+			// most recently used first; its caches are warmest
+			idle.offerFirst(recognizer);
+		}
+		else {
+			idleCount.decrementAndGet();
+			discards.incrementAndGet();
+		}
+	}
+
+	/** Drop all idle recognizers. */
+	public void clear() {
+		while ( idle.pollFirst()!=null ) {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	/** Set how many idle recognizers are kept; extra ones are dropped as
+	 *  they are released.
+	 */
+	public void setMaxIdle(int maxIdle) {
+		if ( maxIdle<0 ) {
+			throw new IllegalArgumentException("maxIdle must not be negative");
+		}
+		this.maxIdle = maxIdle;
+	}
+
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/** The number of calls to {@link #borrow()}. */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/** The number of recognizers created because none was idle. */
+	public long getCreationCount() {
+		return creations.get();
+	}
+
+	/** The number of released recognizers dropped because the pool was full. */
+	public long getDiscardCount() {
+		return discards.get();
+	}
+
+	/** The fraction of borrows served by an idle recognizer, or 0 if none. */
+	public double getHitRate() {
+		long n = borrows.get();
+		return n==0 ? 0 : (double)(n - creations.get()) / n;
+	}
+}
@@ -0,0 +1,499 @@
+package org.antlr.intellij.adaptor;
+
+import com.intellij.lang.Language;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.ShutDownTracker;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** The ATN, DFA cache and prediction context cache shared by all lexers
+ *  and parsers of a Language.
+ *
+ *  ANTLR-generated recognizers keep their DFA in static fields, so whether
+ *  it's shared depends on the generated code and nobody controls its
+ *  lifetime. Define a runtime once per Language, typically in the
+ *  ParserDefinition constructor next to
+ *  {@link org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory#defineLanguageIElementTypes}:
+ *
+ *  <pre>
+ *  ANTLRRecognizerRuntime.define(MyLanguage.INSTANCE, MyLexer::new, MyParser::new);
+ *  </pre>
+ *
+ *  Recognizers obtained from {@link #createLexer()} and {@link #createParser()}
+ *  use the shared caches; {@link org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor}
+ *  and {@link org.antlr.intellij.adaptor.parser.ANTLRParserAdaptor} also
+ *  {@link #bind} any recognizer of the same grammar they are given.
+ *
+ *  Lexers and parsers can also be borrowed from bounded pools
+ *  ({@link #borrowParser()}, {@link #releaseParser}) so that threads
+ *  parsing many files don't construct a recognizer per file.
+ *
+ *  {@link #warmUp} runs a sample corpus through the recognizers so the first
+ *  file the user opens doesn't pay for DFA construction.
+ *
+ *  ANTLR's DFA and context caches only grow. To keep memory steady in long
+ *  IDE sessions, set {@link #setMaxCachedStates a cap} on the number of DFA
+ *  states plus cached prediction contexts. The cap is enforced with the
+ *  {@link EvictionPolicy} when the last parse in flight finishes (see
+ *  {@link #beginParse()}/{@link #endParse()}). Eviction never writes into
+ *  the DFA arrays recognizers are using; it swaps in new arrays, which
+ *  recognizers pick up the next time they are {@link #bind bound}.
+ *
+ *  To skip DFA construction after an IDE restart altogether, call
+ *  {@link #enableSnapshots()} right after defining the runtime. The DFA is
+ *  then saved under the IDE system directory at shutdown and reloaded the
+ *  next time the runtime is defined. Snapshots record a hash of the lexer
+ *  and parser ATN; one taken for a different version of the grammar is
+ *  deleted instead of loaded.
+ */
+public class ANTLRRecognizerRuntime {
+	/** How to get back under {@link #getMaxCachedStates()}. */
+	public enum EvictionPolicy {
+		/** Throw away all DFA states and cached contexts. */
+		RESET_ALL,
+		/** Throw away the DFAs of the largest decisions until at most
+		 *  half the cap is used, then the cached contexts.
+		 */
+		RESET_LARGEST
+	}
+
+	private static final Logger LOG = Logger.getInstance(ANTLRRecognizerRuntime.class);
+
+	private static final Map<Language, ANTLRRecognizerRuntime> runtimes = new ConcurrentHashMap<>();
+
+	/** The default number of idle lexers and parsers kept for reuse. */
+	public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+	private static final int SNAPSHOT_MAGIC = 0x44464121; // "DFA!"
+	private static final int SNAPSHOT_VERSION = 1;
+
+	protected final Language language;
+	protected final Function<CharStream, ? extends Lexer> lexerFactory;
+	protected final Function<TokenStream, ? extends Parser> parserFactory;
+
+	protected final ATN lexerATN;
+	protected final ATN parserATN;
+
+	/** Replaced as a whole, never written into, once recognizers use it. */
+	protected volatile DFA[] lexerDFA;
+	protected volatile DFA[] parserDFA;
+	protected volatile PredictionContextCache lexerContextCache = new PredictionContextCache();
+	protected volatile PredictionContextCache parserContextCache = new PredictionContextCache();
+
+	/** Guarded by this, so no parse can begin while {@link #evict} runs. */
+	private int activeParses;
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile int maxCachedStates = Integer.MAX_VALUE;
+	private volatile EvictionPolicy evictionPolicy = EvictionPolicy.RESET_LARGEST;
+	private Path snapshotFile;
+
+	private final ANTLRRecognizerPool<Lexer> lexerPool =
+		new ANTLRRecognizerPool<>(this::createLexer, ANTLRRecognizerRuntime::resetLexer, DEFAULT_POOL_SIZE);
+	private final ANTLRRecognizerPool<Parser> parserPool =
+		new ANTLRRecognizerPool<>(this::createParser, ANTLRRecognizerRuntime::resetParser, DEFAULT_POOL_SIZE);
+
+	protected ANTLRRecognizerRuntime(Language language,
+	                                 Function<CharStream, ? extends Lexer> lexerFactory,
+	                                 Function<TokenStream, ? extends Parser> parserFactory)
+	{
+		this.language = language;
+		this.lexerFactory = lexerFactory;
+		this.parserFactory = parserFactory;
+		this.lexerATN = lexerFactory.apply(null).getATN();
+		this.parserATN = parserFactory.apply(null).getATN();
+		this.lexerDFA = createDFA(lexerATN);
+		this.parserDFA = createDFA(parserATN);
+	}
+
+	/** Define the runtime for a language, or return the existing one.
+	 *  The factories are typically the generated constructors, e.g.
+	 *  {@code MyLexer::new} and {@code MyParser::new}; they are called with
+	 *  a null input.
+	 */
+	public static ANTLRRecognizerRuntime define(Language language,
+	                                            Function<CharStream, ? extends Lexer> lexerFactory,
+	                                            Function<TokenStream, ? extends Parser> parserFactory)
+	{
+		return runtimes.computeIfAbsent(language, l -> new ANTLRRecognizerRuntime(l, lexerFactory, parserFactory));
+	}
+
+	/** Return the runtime defined for language or null if there is none. */
+	public static ANTLRRecognizerRuntime getInstance(Language language) {
+		return runtimes.get(language);
+	}
+
+	public Language getLanguage() {
+		return language;
+	}
+
+	/** Create a lexer with a null input bound to the shared caches. */
+	public Lexer createLexer() {
+		return bind(lexerFactory.apply(null));
+	}
+
+	/** Create a parser with a null input bound to the shared caches. */
+	public Parser createParser() {
+		return bind(parserFactory.apply(null));
+	}
+
+	/** Take a lexer bound to the shared caches from the pool; give it back
+	 *  with {@link #releaseLexer} when done.
+	 */
+	public Lexer borrowLexer() {
+		return bind(lexerPool.borrow());
+	}
+
+	public void releaseLexer(Lexer lexer) {
+		lexerPool.release(lexer);
+	}
+
+	/** Take a parser bound to the shared caches from the pool; give it back
+	 *  with {@link #releaseParser} when done.
+	 */
+	public Parser borrowParser() {
+		return bind(parserPool.borrow());
+	}
+
+	public void releaseParser(Parser parser) {
+		parserPool.release(parser);
+	}
+
+	public ANTLRRecognizerPool<Lexer> getLexerPool() {
+		return lexerPool;
+	}
+
+	public ANTLRRecognizerPool<Parser> getParserPool() {
+		return parserPool;
+	}
+
+	private static void resetLexer(Lexer lexer) {
+		lexer.setInputStream(null);
+	}
+
+	private static void resetParser(Parser parser) {
+		parser.setTokenStream(null);
+		parser.removeErrorListeners();
+		parser.removeParseListeners();
+		parser.setErrorHandler(new DefaultErrorStrategy());
+		parser.setBuildParseTree(true);
+	}
+
+	/** Point lexer at the shared DFA cache. Lexers of a different
+	 *  grammar, or already bound, are returned unchanged. Lexers bound
+	 *  before the caches were last evicted are rebound; only do that
+	 *  between tokens, e.g. before setting a new input.
+	 */
+	public <T extends Lexer> T bind(T lexer) {
+		LexerATNSimulator interpreter = lexer.getInterpreter();
+		DFA[] dfa = lexerDFA;
+		PredictionContextCache contextCache = lexerContextCache;
+		if ( lexer.getATN()==lexerATN &&
+			 (interpreter.decisionToDFA!=dfa || interpreter.getSharedContextCache()!=contextCache) )
+		{
+			lexer.setInterpreter(new LexerATNSimulator(lexer, lexerATN, dfa, contextCache));
+		}
+		return lexer;
+	}
+
+	/** Point parser at the shared DFA cache. Parsers of a different
+	 *  grammar, or already bound, are returned unchanged. Parsers bound
+	 *  before the caches were last evicted are rebound; only do that
+	 *  between parses.
+	 */
+	public <T extends Parser> T bind(T parser) {
+		ParserATNSimulator interpreter = parser.getInterpreter();
+		DFA[] dfa = parserDFA;
+		PredictionContextCache contextCache = parserContextCache;
+		if ( parser.getATN()==parserATN &&
+			 (interpreter.decisionToDFA!=dfa || interpreter.getSharedContextCache()!=contextCache) )
+		{
+			parser.setInterpreter(new ParserATNSimulator(parser, parserATN, dfa, contextCache));
+		}
+		return parser;
+	}
+
+	/** Lex and parse each sample with startRule (e.g.
+	 *  {@code p -> ((MyParser)p).file()}) to populate the DFA cache.
+	 *  Syntax errors in the samples are ignored.
+	 */
+	public void warmUp(Iterable<? extends CharSequence> corpus, Consumer<? super Parser> startRule) {
+		Lexer lexer = borrowLexer();
+		Parser parser = borrowParser();
+		try {
+			lexer.removeErrorListeners();
+			parser.removeErrorListeners();
+			parser.setBuildParseTree(false);
+			for (CharSequence sample : corpus) {
+				lexer.setInputStream(CharStreams.fromString(sample.toString()));
+				parser.setTokenStream(new CommonTokenStream(lexer));
+				try {
+					startRule.accept(parser);
+				}
+				catch (RecognitionException | ParseCancellationException e) {
+					// only the DFA states matter
+				}
+			}
+		}
+		finally {
+			releaseParser(parser);
+			releaseLexer(lexer);
+		}
+	}
+
+	/** Run {@link #warmUp} on a pooled thread, e.g. from a startup activity. */
+	public Future<?> warmUpInBackground(Iterable<? extends CharSequence> corpus, Consumer<? super Parser> startRule) {
+		return ApplicationManager.getApplication().executeOnPooledThread(() -> {
+			try {
+				warmUp(corpus, startRule);
+			}
+			catch (ProcessCanceledException e) {
+				throw e;
+			}
+			catch (RuntimeException e) {
+				LOG.warn("DFA warm-up failed for " + language, e);
+			}
+		});
+	}
+
+	/** Note that a parse using the shared caches has started. Waits for
+	 *  an eviction in progress to finish.
+	 */
+	public synchronized void beginParse() {
+		activeParses++;
+	}
+
+	/** Note that a parse has finished. When no other parse is in flight
+	 *  and the caches exceed {@link #getMaxCachedStates()}, evict.
+	 *  The caches aren't counted unless a cap is set.
+	 */
+	public synchronized void endParse() {
+		if ( --activeParses==0 && maxCachedStates!=Integer.MAX_VALUE &&
+			 getCachedStateCount()>maxCachedStates )
+		{
+			evict();
+		}
+	}
+
+	/** The number of DFA states of the lexer and parser plus the number
+	 *  of cached prediction contexts.
+	 */
+	public int getCachedStateCount() {
+		return getDFAStateCount(lexerDFA) + getDFAStateCount(parserDFA) +
+			   lexerContextCache.size() + parserContextCache.size();
+	}
+
+	public int getMaxCachedStates() {
+		return maxCachedStates;
+	}
+
+	/** Cap the number of DFA states plus cached contexts; the default is
+	 *  no cap.
+	 */
+	public void setMaxCachedStates(int maxCachedStates) {
+		this.maxCachedStates = maxCachedStates;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/** How many times the caches have been evicted. */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** Apply the eviction policy now unless a parse is in flight.
+	 *  The DFA and context caches are replaced with new ones rather than
+	 *  cleared, so lexers and parsers running on the old ones, like
+	 *  highlighting lexers, which aren't counted as parses, keep a
+	 *  consistent DFA until they are bound again.
+	 */
+	public synchronized void evict() {
+		if ( activeParses!=0 ) return;
+
+		if ( evictionPolicy==EvictionPolicy.RESET_ALL ) {
+			lexerDFA = createDFA(lexerATN);
+			parserDFA = createDFA(parserATN);
+		}
+		else {
+			evictLargest(maxCachedStates / 2);
+		}
+		lexerContextCache = new PredictionContextCache();
+		parserContextCache = new PredictionContextCache();
+		evictions.incrementAndGet();
+	}
+
+	/** Load the snapshot saved in the IDE system directory, if any, and
+	 *  save one there when the IDE shuts down.
+	 */
+	public void enableSnapshots() {
+		enableSnapshots(getDefaultSnapshotFile());
+	}
+
+	/** Load the snapshot in file, if any, and save one there when the IDE
+	 *  shuts down. Only the first call has any effect.
+	 */
+	public synchronized void enableSnapshots(Path file) {
+		if ( snapshotFile!=null ) return;
+		snapshotFile = file;
+		loadSnapshot(file);
+		ShutDownTracker.getInstance().registerShutdownTask(() -> {
+			try {
+				saveSnapshot(file);
+			}
+			catch (IOException | RuntimeException e) {
+				LOG.warn("Can't save DFA snapshot for " + language + " to " + file, e);
+			}
+		});
+	}
+
+	public Path getDefaultSnapshotFile() {
+		String name = language.getID().replaceAll("[^A-Za-z0-9._-]", "_");
+		return Paths.get(PathManager.getSystemPath(), "antlr-dfa", name + ".dfa");
+	}
+
+	/** Write the current lexer and parser DFA to file. States that depend
+	 *  on predicates or lexer actions are left out and rebuilt on demand.
+	 */
+	public synchronized void saveSnapshot(Path file) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp)))))
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(DFASnapshot.fingerprint(lexerATN));
+			out.writeInt(DFASnapshot.fingerprint(parserATN));
+			DFASnapshot.write(out, lexerDFA, true);
+			DFASnapshot.write(out, parserDFA, false);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Replace the lexer and parser DFA with those saved in file. A
+	 *  snapshot of another grammar version is deleted; an unreadable one is
+	 *  ignored. Either way the current DFA is left as it was.
+	 *
+	 *  @return true if the snapshot was loaded.
+	 */
+	public synchronized boolean loadSnapshot(Path file) {
+		if ( !Files.isRegularFile(file) ) return false;
+		try {
+			DFA[] lexer;
+			DFA[] parser;
+			try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)))))
+			{
+				if ( in.readInt()!=SNAPSHOT_MAGIC || in.readInt()!=SNAPSHOT_VERSION ||
+					 in.readInt()!=DFASnapshot.fingerprint(lexerATN) ||
+					 in.readInt()!=DFASnapshot.fingerprint(parserATN) )
+				{
+					lexer = parser = null;
+				}
+				else {
+					lexer = DFASnapshot.read(in, lexerATN, true);
+					parser = DFASnapshot.read(in, parserATN, false);
+				}
+			}
+			if ( lexer==null ) {
+				LOG.info("Deleting stale DFA snapshot " + file);
+				Files.deleteIfExists(file);
+				return false;
+			}
+			lexerDFA = lexer;
+			parserDFA = parser;
+			return true;
+		}
+		catch (IOException | RuntimeException e) {
+			LOG.info("Ignoring unreadable DFA snapshot " + file, e);
+			return false;
+		}
+	}
+
+	/** Copy the DFA arrays, reset the largest decisions in the copies,
+	 *  then publish them.
+	 */
+	private void evictLargest(int target) {
+		DFA[] lexer = lexerDFA.clone();
+		DFA[] parser = parserDFA.clone();
+		List<DFA> all = new ArrayList<>(lexer.length + parser.length);
+		int total = 0;
+		for (DFA dfa : lexer) {
+			all.add(dfa);
+			total += dfa.states.size();
+		}
+		for (DFA dfa : parser) {
+			all.add(dfa);
+			total += dfa.states.size();
+		}
+		all.sort((a, b) -> Integer.compare(b.states.size(), a.states.size()));
+		for (DFA dfa : all) {
+			if ( total<=target ) break;
+			total -= dfa.states.size();
+			if ( dfa.atnStartState.atn==lexerATN ) {
+				lexer[dfa.decision] = new DFA(lexerATN.getDecisionState(dfa.decision), dfa.decision);
+			}
+			else {
+				parser[dfa.decision] = new DFA(parserATN.getDecisionState(dfa.decision), dfa.decision);
+			}
+		}
+		lexerDFA = lexer;
+		parserDFA = parser;
+	}
+
+	private static int getDFAStateCount(DFA[] decisionToDFA) {
+		int n = 0;
+		for (DFA dfa : decisionToDFA) {
+			n += dfa.states.size();
+		}
+		return n;
+	}
+
+	protected static DFA[] createDFA(ATN atn) {
+		DFA[] decisionToDFA = new DFA[atn.getNumberOfDecisions()];
+		for (int i = 0; i < decisionToDFA.length; i++) {
+			decisionToDFA[i] = new DFA(atn.getDecisionState(i), i);
+		}
+		return decisionToDFA;
+	}
+}
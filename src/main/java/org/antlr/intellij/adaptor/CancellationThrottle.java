@@ -0,0 +1,127 @@
+package org.antlr.intellij.adaptor;
+
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+
+import java.util.function.LongSupplier;
+
+/** Amortizes {@link ProgressIndicatorProvider#checkCanceled()} over the
+ *  per-token and per-rule hot loops of lexing, parsing and PSI conversion.
+ *
+ *  {@link #check()} usually only decrements a counter. Every N calls it
+ *  reads the clock, {@link System#nanoTime()} by default, and once half of
+ *  {@link #getMaxLatencyNanos()} has passed since the last real check, it
+ *  checks for cancellation again. N adapts so that the clock is read
+ *  about every sixteenth to eighth of the bound, and never exceeds
+ *  {@link #MAX_CLOCK_INTERVAL}. While steps take about the same time, a
+ *  cancellation is therefore noticed within the bound. After a sudden
+ *  slowdown it can take up to {@link #MAX_CLOCK_INTERVAL} slow steps
+ *  longer; nothing bounds the time of a single step.
+ *
+ *  Each instance counts calls, real checks and the longest time seen
+ *  between two real checks, to measure the overhead saved and the
+ *  latency achieved. Instances are not thread-safe; use one per parse.
+ */
+public final class CancellationThrottle {
+	public static final long DEFAULT_MAX_LATENCY_NANOS = 10_000_000L; // 10ms
+	/** The most calls to {@link #check()} between two reads of the clock. */
+	public static final int MAX_CLOCK_INTERVAL = 1 << 10;
+
+	private static volatile long defaultMaxLatencyNanos = DEFAULT_MAX_LATENCY_NANOS;
+
+	private final long maxLatencyNanos;
+	private final LongSupplier clock;
+	private int interval = 1;
+	private int countdown = 1;
+	private long lastClock;
+	private long lastCheck;
+
+	private long calls;
+	private long checks;
+	private long maxObservedLatencyNanos;
+
+	public CancellationThrottle() {
+		this(defaultMaxLatencyNanos);
+	}
+
+	public CancellationThrottle(long maxLatencyNanos) {
+		this(maxLatencyNanos, System::nanoTime);
+	}
+
+	/** Read time in nanoseconds from clock instead, e.g. a fake one in tests. */
+	public CancellationThrottle(long maxLatencyNanos, LongSupplier clock) {
+		if ( maxLatencyNanos<=0 ) {
+			throw new IllegalArgumentException("maxLatencyNanos must be positive");
+		}
+		this.maxLatencyNanos = maxLatencyNanos;
+		this.clock = clock;
+		this.lastClock = clock.getAsLong();
+		this.lastCheck = lastClock;
+	}
+
+	public static long getDefaultMaxLatencyNanos() {
+		return defaultMaxLatencyNanos;
+	}
+
+	/** Set the latency bound of throttles created from now on. */
+	public static void setDefaultMaxLatencyNanos(long maxLatencyNanos) {
+		if ( maxLatencyNanos<=0 ) {
+			throw new IllegalArgumentException("maxLatencyNanos must be positive");
+		}
+		defaultMaxLatencyNanos = maxLatencyNanos;
+	}
+
+	/** Call once per unit of work, e.g. per token or rule. */
+	public void check() {
+		calls++;
+		if ( --countdown>0 ) return;
+		long now = clock.getAsLong();
+		long sinceClock = now - lastClock;
+		lastClock = now;
+		if ( sinceClock<maxLatencyNanos / 16 ) {
+			interval = Math.min(interval * 2, MAX_CLOCK_INTERVAL);
+		}
+		else if ( sinceClock>maxLatencyNanos / 8 ) {
+			interval = Math.max(interval / 2, 1);
+		}
+		countdown = interval;
+		if ( now - lastCheck>=maxLatencyNanos / 2 ) {
+			checkCanceled(now);
+		}
+	}
+
+	/** Check for cancellation unconditionally. */
+	public void checkNow() {
+		long now = clock.getAsLong();
+		lastClock = now;
+		checkCanceled(now);
+	}
+
+	private void checkCanceled(long now) {
+		long elapsed = now - lastCheck;
+		lastCheck = now;
+		checks++;
+		if ( elapsed>maxObservedLatencyNanos ) {
+			maxObservedLatencyNanos = elapsed;
+		}
+		ProgressIndicatorProvider.checkCanceled();
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	/** The number of calls to {@link #check()}. */
+	public long getCallCount() {
+		return calls;
+	}
+
+	/** The number of times cancellation was really checked. */
+	public long getCheckCount() {
+		return checks;
+	}
+
+	/** The longest time between two real checks so far. */
+	public long getMaxObservedLatencyNanos() {
+		return maxObservedLatencyNanos;
+	}
+}
@@ -0,0 +1,373 @@
+package org.antlr.intellij.adaptor;
+
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNConfig;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.atn.ATNSerializer;
+import org.antlr.v4.runtime.atn.ATNSimulator;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.ArrayPredictionContext;
+import org.antlr.v4.runtime.atn.EmptyPredictionContext;
+import org.antlr.v4.runtime.atn.LexerATNConfig;
+import org.antlr.v4.runtime.atn.OrderedATNConfigSet;
+import org.antlr.v4.runtime.atn.PredictionContext;
+import org.antlr.v4.runtime.atn.SemanticContext;
+import org.antlr.v4.runtime.atn.SingletonPredictionContext;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+import org.antlr.v4.runtime.misc.MurmurHash;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Writes and reads the DFA of a recognizer so that {@link ANTLRRecognizerRuntime}
+ *  can start warm after an IDE restart.
+ *
+ *  The DFA is only a cache in front of ATN simulation, so states that are
+ *  hard to restore faithfully (those involving semantic predicates or lexer
+ *  actions) are simply left out, along with the edges leading to them;
+ *  ANTLR recomputes them on demand. Each section starts with the prediction
+ *  contexts referenced by the saved configurations, parents first, followed
+ *  by the states and edges of each decision.
+ */
+final class DFASnapshot {
+	private static final int NO_STATE = -1;
+	private static final int ERROR_STATE = -2;
+
+	private static final byte EMPTY_CONTEXT = 0;
+	private static final byte SINGLETON_CONTEXT = 1;
+	private static final byte ARRAY_CONTEXT = 2;
+
+	private DFASnapshot() {
+	}
+
+	/** A hash of the serialized ATN; a snapshot taken for a different
+	 *  grammar must not be loaded.
+	 */
+	static int fingerprint(ATN atn) {
+		int[] serialized = ATNSerializer.getSerialized(atn).toArray();
+		int hash = MurmurHash.initialize();
+		for (int value : serialized) {
+			hash = MurmurHash.update(hash, value);
+		}
+		return MurmurHash.finish(hash, serialized.length);
+	}
+
+	static void write(DataOutputStream out, DFA[] decisionToDFA, boolean lexer) throws IOException {
+		List<List<DFAState>> statesPerDecision = new ArrayList<>(decisionToDFA.length);
+		Map<PredictionContext, Integer> contextIds = new IdentityHashMap<>();
+		List<PredictionContext> contexts = new ArrayList<>();
+		for (DFA dfa : decisionToDFA) {
+			List<DFAState> states = new ArrayList<>();
+			synchronized (dfa.states) {
+				for (DFAState s : dfa.states.values()) {
+					if ( isRestorable(s, lexer) ) states.add(s);
+				}
+			}
+			for (DFAState s : states) {
+				for (ATNConfig c : s.configs) {
+					collectContexts(c.context, contextIds, contexts);
+				}
+			}
+			statesPerDecision.add(states);
+		}
+
+		writeContexts(out, contexts, contextIds);
+		out.writeInt(decisionToDFA.length);
+		for (int d = 0; d < decisionToDFA.length; d++) {
+			writeDFA(out, decisionToDFA[d], statesPerDecision.get(d), contextIds);
+		}
+	}
+
+	static DFA[] read(DataInputStream in, ATN atn, boolean lexer) throws IOException {
+		PredictionContext[] contexts = readContexts(in);
+		int n = in.readInt();
+		if ( n!=atn.getNumberOfDecisions() ) {
+			throw new IOException("expected " + atn.getNumberOfDecisions() + " decisions but found " + n);
+		}
+
+		DFA[] decisionToDFA = new DFA[n];
+		for (int d = 0; d < n; d++) {
+			decisionToDFA[d] = readDFA(in, atn, d, contexts, lexer);
+		}
+		return decisionToDFA;
+	}
+
+	private static boolean isRestorable(DFAState s, boolean lexer) {
+		if ( s.predicates!=null || s.lexerActionExecutor!=null ) return false;
+		for (ATNConfig c : s.configs) {
+			if ( c.semanticContext!=SemanticContext.Empty.Instance ) return false;
+			if ( lexer ) {
+				if ( !(c instanceof LexerATNConfig) ) return false;
+				LexerATNConfig lc = (LexerATNConfig)c;
+				if ( lc.getLexerActionExecutor()!=null || lc.hasPassedThroughNonGreedyDecision() ) return false;
+			}
+		}
+		return true;
+	}
+
+	/** Number contexts so that parents come before their children. */
+	private static void collectContexts(PredictionContext root,
+	                                    Map<PredictionContext, Integer> ids,
+	                                    List<PredictionContext> order)
+	{
+		if ( root==null || ids.containsKey(root) ) return;
+		Deque<PredictionContext> work = new ArrayDeque<>();
+		work.push(root);
+		while ( !work.isEmpty() ) {
+			PredictionContext ctx = work.peek();
+			if ( ids.containsKey(ctx) ) {
+				work.pop();
+				continue;
+			}
+			boolean parentsDone = true;
+			if ( !(ctx instanceof EmptyPredictionContext) ) {
+				for (int i = 0; i < ctx.size(); i++) {
+					PredictionContext parent = ctx.getParent(i);
+					if ( parent!=null && !ids.containsKey(parent) ) {
+						work.push(parent);
+						parentsDone = false;
+					}
+				}
+			}
+			if ( parentsDone ) {
+				work.pop();
+				ids.put(ctx, order.size());
+				order.add(ctx);
+			}
+		}
+	}
+
+	private static void writeContexts(DataOutputStream out,
+	                                  List<PredictionContext> contexts,
+	                                  Map<PredictionContext, Integer> ids)
+		throws IOException
+	{
+		out.writeInt(contexts.size());
+		for (PredictionContext ctx : contexts) {
+			if ( ctx instanceof EmptyPredictionContext ) {
+				out.writeByte(EMPTY_CONTEXT);
+				continue;
+			}
+			out.writeByte(ctx instanceof ArrayPredictionContext ? ARRAY_CONTEXT : SINGLETON_CONTEXT);
+			out.writeInt(ctx.size());
+			for (int i = 0; i < ctx.size(); i++) {
+				PredictionContext parent = ctx.getParent(i);
+				out.writeInt(parent!=null ? ids.get(parent) : NO_STATE);
+				out.writeInt(ctx.getReturnState(i));
+			}
+		}
+	}
+
+	private static PredictionContext[] readContexts(DataInputStream in) throws IOException {
+		PredictionContext[] contexts = new PredictionContext[in.readInt()];
+		for (int c = 0; c < contexts.length; c++) {
+			byte kind = in.readByte();
+			if ( kind==EMPTY_CONTEXT ) {
+				contexts[c] = SingletonPredictionContext.create(null, PredictionContext.EMPTY_RETURN_STATE);
+				continue;
+			}
+			int size = in.readInt();
+			PredictionContext[] parents = new PredictionContext[size];
+			int[] returnStates = new int[size];
+			for (int i = 0; i < size; i++) {
+				int parent = in.readInt();
+				if ( parent>=c ) throw new IOException("context " + c + " refers to later context " + parent);
+				parents[i] = parent>=0 ? contexts[parent] : null;
+				returnStates[i] = in.readInt();
+			}
+			if ( kind==SINGLETON_CONTEXT && size==1 ) {
+				contexts[c] = SingletonPredictionContext.create(parents[0], returnStates[0]);
+			}
+			else {
+				contexts[c] = new ArrayPredictionContext(parents, returnStates);
+			}
+		}
+		return contexts;
+	}
+
+	private static void writeDFA(DataOutputStream out, DFA dfa, List<DFAState> states,
+	                             Map<PredictionContext, Integer> contextIds)
+		throws IOException
+	{
+		Map<DFAState, Integer> stateIds = new IdentityHashMap<>();
+		for (int i = 0; i < states.size(); i++) {
+			stateIds.put(states.get(i), i);
+		}
+
+		out.writeBoolean(dfa.isPrecedenceDfa());
+		out.writeInt(states.size());
+		for (DFAState s : states) {
+			out.writeBoolean(s.isAcceptState);
+			out.writeInt(s.prediction);
+			out.writeBoolean(s.requiresFullContext);
+			ATNConfigSet configs = s.configs;
+			out.writeBoolean(configs.fullCtx);
+			out.writeInt(configs.uniqueAlt);
+			out.writeBoolean(configs.dipsIntoOuterContext);
+			writeBitSet(out, configs.conflictingAlts);
+			out.writeInt(configs.size());
+			for (ATNConfig c : configs) {
+				out.writeInt(c.state.stateNumber);
+				out.writeInt(c.alt);
+				out.writeInt(c.context!=null ? contextIds.get(c.context) : NO_STATE);
+				out.writeInt(c.reachesIntoOuterContext);
+			}
+		}
+		for (DFAState s : states) {
+			writeEdges(out, s.edges, stateIds);
+		}
+
+		DFAState s0 = dfa.s0;
+		if ( dfa.isPrecedenceDfa() ) {
+			writeEdges(out, s0!=null ? s0.edges : null, stateIds);
+		}
+		else {
+			Integer id = s0!=null ? stateIds.get(s0) : null;
+			out.writeInt(id!=null ? id : NO_STATE);
+		}
+	}
+
+	private static DFA readDFA(DataInputStream in, ATN atn, int decision,
+	                           PredictionContext[] contexts, boolean lexer)
+		throws IOException
+	{
+		DFA dfa = new DFA(atn.getDecisionState(decision), decision);
+		if ( in.readBoolean()!=dfa.isPrecedenceDfa() ) {
+			throw new IOException("precedence mismatch for decision " + decision);
+		}
+
+		DFAState[] states = new DFAState[in.readInt()];
+		for (int i = 0; i < states.length; i++) {
+			boolean isAcceptState = in.readBoolean();
+			int prediction = in.readInt();
+			boolean requiresFullContext = in.readBoolean();
+			boolean fullCtx = in.readBoolean();
+			ATNConfigSet configs = lexer ? new OrderedATNConfigSet() : new ATNConfigSet(fullCtx);
+			int uniqueAlt = in.readInt();
+			boolean dipsIntoOuterContext = in.readBoolean();
+			BitSet conflictingAlts = readBitSet(in);
+			int n = in.readInt();
+			for (int k = 0; k < n; k++) {
+				int stateNumber = in.readInt();
+				if ( stateNumber<0 || stateNumber>=atn.states.size() ) {
+					throw new IOException("unknown ATN state " + stateNumber);
+				}
+				ATNState state = atn.states.get(stateNumber);
+				int alt = in.readInt();
+				int contextId = in.readInt();
+				PredictionContext context = contextId>=0 ? contexts[contextId] : null;
+				ATNConfig c = lexer ? new LexerATNConfig(state, alt, context) : new ATNConfig(state, alt, context);
+				c.reachesIntoOuterContext = in.readInt();
+				configs.add(c);
+			}
+			configs.uniqueAlt = uniqueAlt;
+			configs.conflictingAlts = conflictingAlts;
+			configs.dipsIntoOuterContext = dipsIntoOuterContext;
+			configs.setReadonly(true);
+
+			DFAState s = new DFAState(configs);
+			s.isAcceptState = isAcceptState;
+			s.prediction = prediction;
+			s.requiresFullContext = requiresFullContext;
+			states[i] = s;
+		}
+		for (DFAState s : states) {
+			s.edges = readEdges(in, states);
+		}
+
+		if ( dfa.isPrecedenceDfa() ) {
+			DFAState[] startStates = readEdges(in, states);
+			if ( startStates!=null ) {
+				for (int precedence = 0; precedence < startStates.length; precedence++) {
+					if ( startStates[precedence]!=null ) {
+						dfa.setPrecedenceStartState(precedence, startStates[precedence]);
+					}
+				}
+			}
+		}
+		else {
+			int s0 = in.readInt();
+			dfa.s0 = s0>=0 ? states[s0] : null;
+		}
+
+		for (DFAState s : states) {
+			s.stateNumber = dfa.states.size();
+			dfa.states.put(s, s);
+		}
+		return dfa;
+	}
+
+	private static void writeEdges(DataOutputStream out, DFAState[] edges,
+	                               Map<DFAState, Integer> stateIds)
+		throws IOException
+	{
+		if ( edges==null ) {
+			out.writeInt(NO_STATE);
+			return;
+		}
+		// edges may be added concurrently; write what we see now
+		int[] targets = new int[edges.length];
+		int count = 0;
+		for (int i = 0; i < edges.length; i++) {
+			DFAState target = edges[i];
+			Integer id = target!=null ? stateIds.get(target) : null;
+			targets[i] = target==ATNSimulator.ERROR ? ERROR_STATE : id!=null ? id : NO_STATE;
+			if ( targets[i]!=NO_STATE ) count++;
+		}
+		out.writeInt(edges.length);
+		out.writeInt(count);
+		for (int i = 0; i < targets.length; i++) {
+			if ( targets[i]!=NO_STATE ) {
+				out.writeInt(i);
+				out.writeInt(targets[i]);
+			}
+		}
+	}
+
+	private static DFAState[] readEdges(DataInputStream in, DFAState[] states) throws IOException {
+		int length = in.readInt();
+		if ( length<0 ) return null;
+		DFAState[] edges = new DFAState[length];
+		int count = in.readInt();
+		for (int k = 0; k < count; k++) {
+			int i = in.readInt();
+			int target = in.readInt();
+			if ( i<0 || i>=length || target>=states.length || target<ERROR_STATE ) {
+				throw new IOException("bad edge " + i + " -> " + target);
+			}
+			edges[i] = target==ERROR_STATE ? ATNSimulator.ERROR : states[target];
+		}
+		return edges;
+	}
+
+	private static void writeBitSet(DataOutputStream out, BitSet bits) throws IOException {
+		if ( bits==null ) {
+			out.writeInt(NO_STATE);
+			return;
+		}
+		long[] words = bits.toLongArray();
+		out.writeInt(words.length);
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	private static BitSet readBitSet(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if ( n<0 ) return null;
+		long[] words = new long[n];
+		for (int i = 0; i < n; i++) {
+			words[i] = in.readLong();
+		}
+		return BitSet.valueOf(words);
+	}
+}
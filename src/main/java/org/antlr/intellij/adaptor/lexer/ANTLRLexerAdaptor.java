@@ -1,11 +1,17 @@
 package org.antlr.intellij.adaptor.lexer;
 
 import com.intellij.lang.Language;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.psi.tree.IElementType;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
 import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.IntStream;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Pair;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
@@ -40,6 +46,8 @@ import java.util.Map;
  * @author Sam Harwell
  */
 public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
+	private static final Logger LOG = Logger.getInstance(ANTLRLexerAdaptor.class);
+
 	/**
 	 * Gets the {@link Language} supported by this lexer. This
 	 * value is passed to {@link PSIElementTypeFactory} to ensure the
@@ -61,19 +69,50 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	private final Lexer lexer;
 
 	/**
-	 * Provides a map from a {@code State} object &rarr; state
-	 * index tracked by IntelliJ. This field provides for an
-	 * efficient implementation of {@link #getState}.
+	 * The runtime {@link #lexer} is bound to, or {@code null} if none is
+	 * defined for {@link #language}. {@link #start} binds the lexer again
+	 * in case the shared DFA was evicted.
+	 */
+	private final ANTLRRecognizerRuntime runtime;
+
+	/**
+	 * Interns lexer states for all lexers of {@link #language}, providing
+	 * efficient implementations of {@link #getState} and {@link
+	 * #toLexerState} whose results are valid across lexer instances.
+	 */
+	private final ANTLRLexerStateRegistry stateRegistry;
+
+	/**
+	 * Provides a map from a {@code ANTLRLexerState} object &rarr; state
+	 * index for states that did not fit in {@link #stateRegistry}. These
+	 * indexes are negative and only meaningful to this instance.
+	 */
+	private Map<ANTLRLexerState, Integer> localStateMap;
+
+	/**
+	 * Provides a map from a local state index, decoded with {@link
+	 * #toLocalIndex}, &rarr; {@code ANTLRLexerState} object.
 	 */
-	private final Map<ANTLRLexerState, Integer> stateCacheMap = new HashMap<>();
+	private List<ANTLRLexerState> localStates;
 
 	/**
-	 * Provides a map from a state index tracked by IntelliJ
-	 * &rarr; {@code ANTLRLexerState} object describing the ANTLR lexer
-	 * state. This field provides for an efficient implementation
-	 * of {@link #toLexerState}.
+	 * {@code true} once {@link #toLexerState} has warned about a local
+	 * state index of another instance.
 	 */
-	private final List<ANTLRLexerState> stateCache = new ArrayList<>();
+	private boolean reportedForeignState;
+
+	/**
+	 * {@code true} if {@link #stateRegistry} packs lexer modes directly
+	 * into state integers. In that case {@link #advance} and {@link
+	 * #start} bypass {@link #getLexerState} and {@link #applyLexerState}.
+	 */
+	private final boolean packedStates;
+
+	/**
+	 * The packed form of {@link #currentState}, or -1 if packed states are
+	 * disabled or the current state does not fit.
+	 */
+	private int currentPackedState = -1;
 
 	/**
 	 * Caches the {@code buffer} provided in the call to {@link
@@ -122,7 +161,8 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	/**
 	 * Constructs a new instance of {@link ANTLRLexerAdaptor} with
 	 * the specified {@link Language} and underlying ANTLR {@link
-	 * Lexer}.
+	 * Lexer}. If an {@link ANTLRRecognizerRuntime} is defined for the
+	 * language, the lexer is bound to its shared DFA cache.
 	 *
 	 * @param language The language.
 	 * @param lexer The underlying ANTLR lexer.
@@ -131,6 +171,12 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 		this.language = language;
 		this.tokenElementTypes = PSIElementTypeFactory.getTokenIElementTypes(language);
 		this.lexer = lexer;
+		this.runtime = ANTLRRecognizerRuntime.getInstance(language);
+		if (runtime != null) {
+			runtime.bind(lexer);
+		}
+		this.stateRegistry = ANTLRLexerStateRegistry.getInstance(language);
+		this.packedStates = stateRegistry.isPackedEncoding();
 	}
 
 	/**
@@ -157,18 +203,29 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
 		this.buffer = buffer;
 		this.endOffset = endOffset;
+		if (runtime != null) {
+			// pick up the shared DFA again if it was evicted since
+			runtime.bind(lexer);
+		}
 
-		CharStream in = new CharSequenceCharStream(buffer, endOffset, IntStream.UNKNOWN_SOURCE_NAME);
+		CharStream in = new CharSequenceCharStream(buffer, endOffset, IntStream.UNKNOWN_SOURCE_NAME, isCodePointInput());
 		in.seek(startOffset);
 
-		ANTLRLexerState state;
-		if (startOffset == 0 && initialState == 0) {
-			state = getInitialState();
-		} else {
-			state = toLexerState(initialState);
+		if (packedStates && stateRegistry.isPacked(initialState)) {
+			lexer.setInputStream(in);
+			stateRegistry.unpack(initialState, lexer);
+		}
+		else {
+			ANTLRLexerState state;
+			if (startOffset == 0 && initialState == 0) {
+				state = getInitialState();
+			} else {
+				state = toLexerState(initialState);
+			}
+
+			applyLexerState(in, state);
 		}
 
-		applyLexerState(in, state);
 		advance();
 	}
 
@@ -190,23 +247,138 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 
 	@Override
 	public void advance() {
-		currentState = getLexerState(lexer);
+		if (packedStates) {
+			currentPackedState = stateRegistry.pack(lexer);
+			if (currentPackedState >= 0) {
+				currentToken = lexer.nextToken();
+				return;
+			}
+		}
+
+		// the lexer state rarely changes between tokens; keep the previous
+		// state object rather than allocating an equal one for each token
+		if (currentState == null || !currentState.matches(lexer)) {
+			currentState = getLexerState(lexer);
+		}
+
 		currentToken = lexer.nextToken();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 *
+	 * <p>States packed or interned by the language's {@link
+	 * ANTLRLexerStateRegistry} are non-negative and can be passed to
+	 * {@link #start} of any lexer of the language. Once the registry holds
+	 * {@link ANTLRLexerStateRegistry#getCapacity} states, new states get
+	 * negative indexes local to this instance, and only this instance
+	 * restarts correctly from them; any other lexer logs a warning and
+	 * restarts in the initial state. Raise the capacity if that happens.</p>
+	 */
 	@Override
 	public int getState() {
+		if (currentPackedState >= 0) {
+			return currentPackedState;
+		}
+
 		ANTLRLexerState state = currentState != null ? currentState : getInitialState();
-		Integer existing = stateCacheMap.get(state);
+		int index = stateRegistry.getIndex(state);
+		if (index >= 0) {
+			return index;
+		}
+
+		return getLocalStateIndex(state);
+	}
+
+	private int getLocalStateIndex(ANTLRLexerState state) {
+		if (localStateMap == null) {
+			localStateMap = new HashMap<>();
+			localStates = new ArrayList<>();
+		}
+
+		Integer existing = localStateMap.get(state);
 		if (existing == null) {
-			existing = stateCache.size();
-			stateCache.add(state);
-			stateCacheMap.put(state, existing);
+			existing = toLocalIndex(localStates.size());
+			localStates.add(state);
+			localStateMap.put(state, existing);
 		}
 
 		return existing;
 	}
 
+	/**
+	 * Maps between positions in {@link #localStates} and the negative
+	 * state indexes handed to IntelliJ; the mapping is its own inverse.
+	 */
+	private static int toLocalIndex(int index) {
+		return -1 - index;
+	}
+
+	/**
+	 * Lexes {@code buffer} from {@code startOffset} to {@code endOffset}
+	 * in one pass, appending every token to {@code batch}. If {@link
+	 * #canRecycleTokens} allows it, the ANTLR lexer emits into a single
+	 * recycled {@link Token} while this runs, so no objects are allocated
+	 * per token. The adaptor is left positioned at the end of the range.
+	 *
+	 * @param buffer The buffer to lex.
+	 * @param startOffset The offset at which to start lexing.
+	 * @param endOffset The offset at which to stop lexing.
+	 * @param initialState The lexer state at {@code startOffset}, as for {@link #start}.
+	 * @param batch The batch receiving the tokens; it is not cleared first.
+	 */
+	public void tokenize(CharSequence buffer, int startOffset, int endOffset, int initialState, ANTLRTokenBatch batch) {
+		TokenFactory<?> tokenFactory = lexer.getTokenFactory();
+		if (canRecycleTokens()) {
+			lexer.setTokenFactory(new RecyclingTokenFactory());
+		}
+		try {
+			start(buffer, startOffset, endOffset, initialState);
+			while (currentToken.getType() != Token.EOF) {
+				batch.add(currentToken.getType(), getTokenStart(), getTokenEnd(), getState());
+				advance();
+			}
+		}
+		finally {
+			lexer.setTokenFactory(tokenFactory);
+		}
+	}
+
+	/**
+	 * Determines whether {@link #tokenize} may have the ANTLR lexer emit
+	 * every token into the same {@link Token} object. That is only safe if
+	 * the lexer never holds on to a token after returning the next one.
+	 * Lexers that queue tokens, e.g. to emit INDENT and DEDENT tokens, do
+	 * so by overriding {@link Lexer#nextToken} or {@link Lexer#emit(Token)},
+	 * so the default implementation returns {@code true} only if the lexer
+	 * overrides neither. Override to return {@code false} if the lexer
+	 * keeps tokens some other way.
+	 *
+	 * @return {@code true} if tokens may be recycled.
+	 */
+	protected boolean canRecycleTokens() {
+		return !QUEUES_TOKENS.get(lexer.getClass());
+	}
+
+	/**
+	 * Caches per lexer class whether it overrides a method through which
+	 * lexers queue tokens.
+	 */
+	private static final ClassValue<Boolean> QUEUES_TOKENS = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				return type.getMethod("nextToken").getDeclaringClass() != Lexer.class ||
+					   type.getMethod("emit", Token.class).getDeclaringClass() != Lexer.class ||
+					   type.getMethod("emit").getDeclaringClass() != Lexer.class ||
+					   type.getMethod("emitEOF").getDeclaringClass() != Lexer.class;
+			}
+			catch (NoSuchMethodException e) {
+				return true;
+			}
+		}
+	};
+
 	@Override
 	public int getTokenStart() {
 		return currentToken.getStartIndex();
@@ -227,6 +399,21 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 		return endOffset;
 	}
 
+	/**
+	 * Determines whether the ANTLR lexer sees a surrogate pair as a single
+	 * code point, as it does with ANTLR's {@code CharStreams}, or as two
+	 * UTF-16 code units. Token offsets are UTF-16 offsets either way. The
+	 * default implementation returns {@code false}, which keeps grammars
+	 * that match surrogates individually working; override to return
+	 * {@code true} for grammars that match supplementary characters as
+	 * single symbols, such as emoji or supplementary Unicode properties.
+	 *
+	 * @return {@code true} to present supplementary characters as code points.
+	 */
+	protected boolean isCodePointInput() {
+		return false;
+	}
+
 	/**
 	 * Update the current lexer to use the specified {@code input}
 	 * stream starting in the specified {@code state}.
@@ -252,7 +439,7 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	 * the lexer at the beginning of an input.
 	 */
 	protected ANTLRLexerState getInitialState() {
-		return new ANTLRLexerState(Lexer.DEFAULT_MODE, null);
+		return ANTLRLexerState.DEFAULT;
 	}
 
 	/**
@@ -264,6 +451,10 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	 */
 	protected ANTLRLexerState getLexerState(Lexer lexer) {
 		if (lexer._modeStack.isEmpty()) {
+			if (lexer._mode == Lexer.DEFAULT_MODE) {
+				return ANTLRLexerState.DEFAULT;
+			}
+
 			return new ANTLRLexerState(lexer._mode, null);
 		}
 
@@ -277,11 +468,59 @@ public class ANTLRLexerAdaptor extends com.intellij.lexer.LexerBase {
 	 * @return The {@code ANTLRLexerState} instance corresponding to the specified state.
 	 */
 	protected ANTLRLexerState toLexerState(int state) {
-		if (state < stateCache.size()) {
-			return stateCache.get(state);
+		ANTLRLexerState result;
+		if (state >= 0) {
+			result = stateRegistry.getState(state);
+		}
+		else {
+			int localIndex = toLocalIndex(state);
+			result = localStates != null && localIndex < localStates.size() ? localStates.get(localIndex) : null;
+			if (result == null && !reportedForeignState) {
+				reportedForeignState = true;
+				LOG.warn("Lexer state " + state + " of " + language + " is local to another lexer instance; " +
+						 "restarting in the initial state. Raise the capacity of its ANTLRLexerStateRegistry.");
+			}
+		}
+
+		if (result != null) {
+			return result;
 		}
 
 		// Can happen in injected languages when startOffset != zero and initialState == zero
 		return getInitialState();
 	}
+
+	/**
+	 * Hands out the same token for every call, so a token is only valid
+	 * until the lexer emits the next one. Used by {@link #tokenize}.
+	 */
+	private static class RecyclingTokenFactory implements TokenFactory<CommonToken> {
+		private CommonToken token;
+
+		@Override
+		public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text,
+		                          int channel, int start, int stop,
+		                          int line, int charPositionInLine)
+		{
+			if (token == null) {
+				token = new CommonToken(source, type, channel, start, stop);
+			}
+			else {
+				token.setType(type);
+				token.setChannel(channel);
+				token.setStartIndex(start);
+				token.setStopIndex(stop);
+			}
+
+			token.setText(text);
+			token.setLine(line);
+			token.setCharPositionInLine(charPositionInLine);
+			return token;
+		}
+
+		@Override
+		public CommonToken create(int type, String text) {
+			return new CommonToken(type, text);
+		}
+	}
 }
@@ -33,10 +33,19 @@ import org.jetbrains.annotations.Nullable;
  *     <li>Override {@link #hashCodeImpl} and {@link #equals} to ensure
  *       that the caching features provided are able to efficiently
  *       store the resulting state instances.</li>
+ *     <li>Override {@link #matches} if the state may be reused for
+ *       consecutive tokens while the lexer state does not change.</li>
  * </ol>
  */
 @Immutable
 public class ANTLRLexerState {
+	/**
+	 * The state of a lexer in {@link Lexer#DEFAULT_MODE} with an empty
+	 * mode stack. This is the initial state, and the only state of
+	 * single-mode lexers.
+	 */
+	public static final ANTLRLexerState DEFAULT = new ANTLRLexerState(Lexer.DEFAULT_MODE, null);
+
 	/**
 	 * This is the backing field for {@link #getMode}.
 	 */
@@ -95,6 +104,42 @@ public class ANTLRLexerState {
 		}
 	}
 
+	/**
+	 * Determines whether this state describes the current state of the
+	 * specified lexer, without allocating. {@link ANTLRLexerAdaptor} uses
+	 * this to keep the previous state object while the mode and mode stack
+	 * are unchanged.
+	 *
+	 * <p>The default implementation only compares the mode and mode stack,
+	 * so it never matches for subclasses, which may store additional
+	 * information.</p>
+	 *
+	 * @param lexer The lexer.
+	 * @return {@code true} if applying this state would not change {@code lexer}.
+	 */
+	public boolean matches(@NotNull Lexer lexer) {
+		if (getClass() != ANTLRLexerState.class || lexer._mode != mode) {
+			return false;
+		}
+
+		IntegerStack stack = lexer._modeStack;
+		if (modeStack == null) {
+			return stack.isEmpty();
+		}
+
+		if (stack.size() != modeStack.length) {
+			return false;
+		}
+
+		for (int i = 0; i < modeStack.length; i++) {
+			if (stack.get(i) != modeStack[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	@Override
 	public final int hashCode() {
 		if (cachedHashCode == 0) {
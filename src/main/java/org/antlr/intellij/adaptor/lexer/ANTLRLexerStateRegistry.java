@@ -0,0 +1,302 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import com.intellij.lang.Language;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.misc.IntegerStack;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns {@link ANTLRLexerState} instances for a {@link Language} so that
+ * all {@link ANTLRLexerAdaptor} instances of that language agree on the
+ * integer state reported to IntelliJ through {@link ANTLRLexerAdaptor#getState}.
+ *
+ * <p>The IDE creates fresh lexers for highlighting, parsing, indexing and
+ * injected fragments; sharing the registry means a state is interned once
+ * per language rather than once per lexer instance, and a state integer
+ * obtained from one lexer can be passed to
+ * {@link ANTLRLexerAdaptor#start} of another.</p>
+ *
+ * <p>Lookups of known states are lock-free; only interning a state that
+ * has not been seen before synchronizes. The registry holds at most
+ * {@link #getCapacity} states. Once it is full, {@link #getIndex} returns
+ * -1 and the adaptor keeps the state in a table local to the lexer
+ * instance, so a lexer that pushes modes without bound cannot grow the
+ * shared registry for the rest of the IDE session.</p>
+ *
+ * <p>Index 0 is always {@link ANTLRLexerState#DEFAULT}.</p>
+ *
+ * <p>With {@link #setPackedEncoding packed encoding} enabled, states of
+ * lexers with at most 16 modes and a mode stack no deeper than {@link
+ * #MAX_PACKED_STACK_DEPTH} are not interned at all; the mode and mode
+ * stack are packed directly into the state integer, which is then stable
+ * across lexer instances and IDE restarts. Only states that do not fit
+ * are interned, and are marked with a flag bit.</p>
+ */
+public class ANTLRLexerStateRegistry {
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+
+	/** The deepest mode stack that fits in a packed state. */
+	public static final int MAX_PACKED_STACK_DEPTH = 5;
+
+	// packed layout: mode (4 bits) | stack depth (3 bits) | 4 bits per stacked mode
+	private static final int MODE_BITS = 4;
+	private static final int MODE_MASK = (1 << MODE_BITS) - 1;
+	private static final int DEPTH_SHIFT = MODE_BITS;
+	private static final int DEPTH_MASK = 0x7;
+	private static final int STACK_SHIFT = DEPTH_SHIFT + 3;
+
+	/** Marks an interned state index when packed encoding is enabled. */
+	private static final int INTERNED_FLAG = 1 << 30;
+
+	private static final Map<Language, ANTLRLexerStateRegistry> registries = new ConcurrentHashMap<>();
+
+	/**
+	 * Provides a map from a {@code ANTLRLexerState} object &rarr; state
+	 * index tracked by IntelliJ.
+	 */
+	private final Map<ANTLRLexerState, Integer> stateToIndex = new ConcurrentHashMap<>();
+
+	/**
+	 * Provides a map from a state index tracked by IntelliJ &rarr;
+	 * {@code ANTLRLexerState}. The array is replaced, never resized in
+	 * place, when it fills up.
+	 */
+	private volatile ANTLRLexerState[] indexToState = new ANTLRLexerState[16];
+
+	/** The number of interned states; only written while holding the lock. */
+	private volatile int size;
+
+	private volatile int capacity = DEFAULT_CAPACITY;
+
+	private volatile boolean packedEncoding;
+
+	protected ANTLRLexerStateRegistry() {
+		intern(ANTLRLexerState.DEFAULT);
+	}
+
+	/**
+	 * Gets the registry shared by all lexers of the specified language.
+	 *
+	 * @param language The language.
+	 * @return The state registry for {@code language}.
+	 */
+	public static ANTLRLexerStateRegistry getInstance(Language language) {
+		return registries.computeIfAbsent(language, l -> new ANTLRLexerStateRegistry());
+	}
+
+	/**
+	 * Gets the state index for {@code state}, interning it if necessary.
+	 *
+	 * @param state The lexer state.
+	 * @return The index of {@code state}, or -1 if the state is not known
+	 * and the registry is full.
+	 */
+	public int getIndex(ANTLRLexerState state) {
+		if (packedEncoding) {
+			int packed = pack(state);
+			if (packed >= 0) {
+				return packed;
+			}
+		}
+
+		Integer index = stateToIndex.get(state);
+		if (index == null) {
+			index = intern(state);
+		}
+
+		if (packedEncoding && index >= 0) {
+			return index | INTERNED_FLAG;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Gets the state previously interned at {@code index}.
+	 *
+	 * @param index A state index returned by {@link #getIndex}.
+	 * @return The state, or {@code null} if no state has that index.
+	 */
+	public ANTLRLexerState getState(int index) {
+		if (packedEncoding && index >= 0) {
+			if ((index & INTERNED_FLAG) == 0) {
+				return unpack(index);
+			}
+
+			index &= ~INTERNED_FLAG;
+		}
+
+		ANTLRLexerState[] states = indexToState;
+		if (index < 0 || index >= states.length) {
+			return null;
+		}
+
+		return states[index];
+	}
+
+	/**
+	 * Gets the number of states held by this registry.
+	 *
+	 * @return The number of interned states.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of states held by this registry. Lowering
+	 * the capacity below {@link #size} does not drop any states, since
+	 * IntelliJ may still hold their indexes; it only stops new states
+	 * from being interned.
+	 *
+	 * @param capacity The maximum number of states.
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 1 || capacity > INTERNED_FLAG) {
+			throw new IllegalArgumentException("capacity must be between 1 and " + INTERNED_FLAG);
+		}
+
+		this.capacity = capacity;
+	}
+
+	public boolean isPackedEncoding() {
+		return packedEncoding;
+	}
+
+	/**
+	 * Enables or disables packing lexer modes directly into state integers.
+	 * This only supports lexers using plain {@link ANTLRLexerState}s, and
+	 * must be configured before the first lexer of the language is
+	 * created since it changes the meaning of state integers.
+	 *
+	 * @param packedEncoding {@code true} to enable packed encoding.
+	 */
+	public void setPackedEncoding(boolean packedEncoding) {
+		this.packedEncoding = packedEncoding;
+	}
+
+	/**
+	 * Determines whether the specified state integer holds a packed state.
+	 *
+	 * @param state A state returned by {@link #getIndex} or {@link #pack}.
+	 * @return {@code true} if {@code state} can be passed to {@link #unpack(int, Lexer)}.
+	 */
+	public boolean isPacked(int state) {
+		return packedEncoding && state >= 0 && (state & INTERNED_FLAG) == 0;
+	}
+
+	/**
+	 * Packs the current mode and mode stack of {@code lexer} into a state
+	 * integer without allocating.
+	 *
+	 * @param lexer The lexer.
+	 * @return The packed state, or -1 if the state does not fit.
+	 */
+	public int pack(Lexer lexer) {
+		int mode = lexer._mode;
+		IntegerStack stack = lexer._modeStack;
+		int depth = stack.size();
+		if (mode < 0 || mode > MODE_MASK || depth > MAX_PACKED_STACK_DEPTH) {
+			return -1;
+		}
+
+		int packed = mode | depth << DEPTH_SHIFT;
+		for (int i = 0; i < depth; i++) {
+			int stacked = stack.get(i);
+			if (stacked < 0 || stacked > MODE_MASK) {
+				return -1;
+			}
+
+			packed |= stacked << (STACK_SHIFT + i * MODE_BITS);
+		}
+
+		return packed;
+	}
+
+	/**
+	 * Applies a packed state to {@code lexer}.
+	 *
+	 * @param state A state for which {@link #isPacked} returns {@code true}.
+	 * @param lexer The lexer.
+	 */
+	public void unpack(int state, Lexer lexer) {
+		lexer._mode = state & MODE_MASK;
+		lexer._modeStack.clear();
+		int depth = (state >>> DEPTH_SHIFT) & DEPTH_MASK;
+		for (int i = 0; i < depth; i++) {
+			lexer._modeStack.push((state >>> (STACK_SHIFT + i * MODE_BITS)) & MODE_MASK);
+		}
+	}
+
+	private static int pack(ANTLRLexerState state) {
+		if (state.getClass() != ANTLRLexerState.class) {
+			return -1;
+		}
+
+		int mode = state.getMode();
+		int[] stack = state.getModeStack();
+		int depth = stack != null ? stack.length : 0;
+		if (mode < 0 || mode > MODE_MASK || depth > MAX_PACKED_STACK_DEPTH) {
+			return -1;
+		}
+
+		int packed = mode | depth << DEPTH_SHIFT;
+		for (int i = 0; i < depth; i++) {
+			if (stack[i] < 0 || stack[i] > MODE_MASK) {
+				return -1;
+			}
+
+			packed |= stack[i] << (STACK_SHIFT + i * MODE_BITS);
+		}
+
+		return packed;
+	}
+
+	private static ANTLRLexerState unpack(int state) {
+		if (state == 0) {
+			return ANTLRLexerState.DEFAULT;
+		}
+
+		int depth = (state >>> DEPTH_SHIFT) & DEPTH_MASK;
+		IntegerStack stack = null;
+		if (depth > 0) {
+			stack = new IntegerStack(depth);
+			for (int i = 0; i < depth; i++) {
+				stack.push((state >>> (STACK_SHIFT + i * MODE_BITS)) & MODE_MASK);
+			}
+		}
+
+		return new ANTLRLexerState(state & MODE_MASK, stack);
+	}
+
+	private synchronized int intern(ANTLRLexerState state) {
+		Integer existing = stateToIndex.get(state);
+		if (existing != null) {
+			return existing;
+		}
+
+		int index = size;
+		if (index >= capacity) {
+			return -1;
+		}
+
+		ANTLRLexerState[] states = indexToState;
+		if (index == states.length) {
+			states = Arrays.copyOf(states, states.length * 2);
+			indexToState = states;
+		}
+
+		// publish the state before its index becomes visible to other threads
+		states[index] = state;
+		size = index + 1;
+		stateToIndex.put(state, index);
+		return index;
+	}
+}
@@ -0,0 +1,112 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, growable buffer of tokens stored as parallel primitive
+ * arrays, filled by {@link ANTLRLexerAdaptor#tokenize}.
+ *
+ * <p>Token {@code i} has ANTLR token type {@code getTokenTypes()[i]},
+ * covers the characters {@code getTokenStarts()[i]} (inclusive) to
+ * {@code getTokenEnds()[i]} (exclusive), and was lexed starting in the
+ * IntelliJ lexer state {@code getStates()[i]}, as returned by
+ * {@link ANTLRLexerAdaptor#getState}. The arrays may be longer than
+ * {@link #size()}; entries past it are undefined.</p>
+ *
+ * <p>Calling {@link #clear()} keeps the arrays, so consumers such as word
+ * scanners, indexers and folding builders can lex buffer after buffer
+ * without allocating per token. Instances are not thread-safe.</p>
+ */
+public class ANTLRTokenBatch {
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private int[] tokenTypes;
+	private int[] tokenStarts;
+	private int[] tokenEnds;
+	private int[] states;
+	private int size;
+
+	public ANTLRTokenBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ANTLRTokenBatch(int initialCapacity) {
+		int capacity = Math.max(initialCapacity, 1);
+		tokenTypes = new int[capacity];
+		tokenStarts = new int[capacity];
+		tokenEnds = new int[capacity];
+		states = new int[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Forget all tokens but keep the arrays for reuse. */
+	public void clear() {
+		size = 0;
+	}
+
+	public void add(int tokenType, int tokenStart, int tokenEnd, int state) {
+		if (size == tokenTypes.length) {
+			ensureCapacity(size * 2);
+		}
+
+		tokenTypes[size] = tokenType;
+		tokenStarts[size] = tokenStart;
+		tokenEnds[size] = tokenEnd;
+		states[size] = state;
+		size++;
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity <= tokenTypes.length) {
+			return;
+		}
+
+		tokenTypes = Arrays.copyOf(tokenTypes, capacity);
+		tokenStarts = Arrays.copyOf(tokenStarts, capacity);
+		tokenEnds = Arrays.copyOf(tokenEnds, capacity);
+		states = Arrays.copyOf(states, capacity);
+	}
+
+	public int getTokenType(int i) {
+		return tokenTypes[i];
+	}
+
+	public int getTokenStart(int i) {
+		return tokenStarts[i];
+	}
+
+	public int getTokenEnd(int i) {
+		return tokenEnds[i];
+	}
+
+	public int getState(int i) {
+		return states[i];
+	}
+
+	/** The backing array of token types; valid up to {@link #size()}. */
+	public int[] getTokenTypes() {
+		return tokenTypes;
+	}
+
+	/** The backing array of token start offsets; valid up to {@link #size()}. */
+	public int[] getTokenStarts() {
+		return tokenStarts;
+	}
+
+	/** The backing array of token end offsets; valid up to {@link #size()}. */
+	public int[] getTokenEnds() {
+		return tokenEnds;
+	}
+
+	/** The backing array of lexer states; valid up to {@link #size()}. */
+	public int[] getStates() {
+		return states;
+	}
+}
@@ -1,5 +1,6 @@
 package org.antlr.intellij.adaptor.lexer;
 
+import com.intellij.util.text.CharArrayUtil;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.IntStream;
 import org.antlr.v4.runtime.misc.Interval;
@@ -8,22 +9,57 @@ import org.antlr.v4.runtime.misc.Interval;
  * This class provides a basic implementation of
  * {@link org.antlr.v4.runtime.CharStream} backed by an arbitrary
  * {@link CharSequence}.
+ *
+ * <p>Lookahead reads the backing array directly when the buffer exposes
+ * one (e.g. {@code CharArrayCharSequence} or an array-backed
+ * {@link java.nio.CharBuffer}), and calls {@link String#charAt} without
+ * going through the {@link CharSequence} interface when the buffer is a
+ * {@link String}. Everything else falls back to {@link CharSequence#charAt}.</p>
+ *
+ * <p>When {@code codePoints} is set, a surrogate pair is presented to the
+ * lexer as a single symbol, like ANTLR's own {@code CodePointCharStream}.
+ * Indexes remain UTF-16 offsets into the buffer: consuming a pair
+ * advances the position by two, so token start/stop indexes are the
+ * offsets IntelliJ expects and no translation is needed.</p>
  */
 class CharSequenceCharStream implements CharStream {
 	private final CharSequence buffer;
+	/**
+	 * The backing array of {@link #buffer}, if it can be obtained without
+	 * copying, else {@code null}.
+	 */
+	private final char[] array;
+	/**
+	 * {@link #buffer} if it is a {@link String}, else {@code null}.
+	 */
+	private final String string;
 	/**
 	 * If greater than or equal to 0, this value overrides the value returned by
 	 * {@link #buffer}{@code .}{@link CharSequence#length()}.
 	 */
 	private final int endOffset;
+	/**
+	 * The value returned by {@link #size()}, computed once since the
+	 * buffer handed to a lexer does not change.
+	 */
+	private final int size;
+	private final boolean codePoints;
 	private final String sourceName;
 
 	private int position;
 
 	public CharSequenceCharStream(CharSequence buffer, int endOffset, String sourceName) {
+		this(buffer, endOffset, sourceName, false);
+	}
+
+	public CharSequenceCharStream(CharSequence buffer, int endOffset, String sourceName, boolean codePoints) {
 		this.buffer = buffer;
 		this.sourceName = sourceName;
 		this.endOffset = endOffset;
+		this.size = endOffset >= 0 ? endOffset : buffer.length();
+		this.codePoints = codePoints;
+		this.string = buffer instanceof String ? (String)buffer : null;
+		this.array = string == null ? CharArrayUtil.fromSequenceWithoutCopying(buffer) : null;
 	}
 
 	protected final CharSequence getBuffer() {
@@ -45,41 +81,101 @@ class CharSequenceCharStream implements CharStream {
 		int n = size();
 		if ( stop >= n ) stop = n-1;
 		if ( start >= n ) return "";
+		if ( array != null ) return new String(array, start, stop - start + 1);
+		if ( string != null ) return string.substring(start, stop + 1);
 		return buffer.subSequence(start, stop + 1).toString();
 	}
 
 	@Override
 	public void consume() {
-		if (position == size()) {
+		if (position == size) {
 			throw new IllegalStateException("attempted to consume EOF");
 		}
 
-		position++;
+		if (codePoints && isSurrogatePairAt(position)) {
+			position += 2;
+		}
+		else {
+			position++;
+		}
 	}
 
 	@Override
 	public int LA(int i) {
 		if (i > 0) {
-			int index = position + i - 1;
-			if (index >= size() ) {
+			int index = position;
+			if (codePoints) {
+				// skip i-1 code points
+				for (int k = 1; k < i && index < size; k++) {
+					index += isSurrogatePairAt(index) ? 2 : 1;
+				}
+			}
+			else {
+				index += i - 1;
+			}
+
+			if (index >= size) {
 				return IntStream.EOF;
 			}
 
-			return buffer.charAt(index);
+			return codePoints ? codePointAt(index) : charAt(index);
 		}
 		else if (i < 0) {
-			int index = position + i;
-			if (index < 0) {
-				return 0;
+			if (!codePoints) {
+				int index = position + i;
+				if (index < 0) {
+					return 0;
+				}
+
+				return charAt(index);
 			}
 
-			return buffer.charAt(index);
+			int index = position;
+			for (int k = 0; k > i; k--) {
+				if (index <= 0) {
+					return 0;
+				}
+
+				index -= index >= 2 && isSurrogatePairAt(index - 2) ? 2 : 1;
+			}
+
+			return codePointAt(index);
 		}
 		else {
 			return 0;
 		}
 	}
 
+	private char charAt(int index) {
+		if (array != null) {
+			return array[index];
+		}
+
+		if (string != null) {
+			return string.charAt(index);
+		}
+
+		return buffer.charAt(index);
+	}
+
+	private int codePointAt(int index) {
+		char c = charAt(index);
+		if (Character.isHighSurrogate(c) && index + 1 < size) {
+			char low = charAt(index + 1);
+			if (Character.isLowSurrogate(low)) {
+				return Character.toCodePoint(c, low);
+			}
+		}
+
+		return c;
+	}
+
+	private boolean isSurrogatePairAt(int index) {
+		return index + 1 < size
+			&& Character.isHighSurrogate(charAt(index))
+			&& Character.isLowSurrogate(charAt(index + 1));
+	}
+
 	@Override
 	public int mark() {
 		return 0;
@@ -106,12 +202,7 @@ class CharSequenceCharStream implements CharStream {
 
 	@Override
 	public int size() {
-		if (endOffset >= 0) {
-			return endOffset;
-		}
-
-		int n = buffer.length();
-		return n;
+		return size;
 	}
 
 	@Override
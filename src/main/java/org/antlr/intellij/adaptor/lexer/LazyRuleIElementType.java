@@ -0,0 +1,65 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import com.intellij.lang.Language;
+import com.intellij.psi.tree.ILazyParseableElementType;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/** An element type for a delimited rule, such as a function body, whose
+ *  content is only parsed when someone looks inside it.
+ *
+ *  When the outer parse enters the rule, {@link PSITokenStream#skipBalanced}
+ *  hides everything between the open delimiter and its matching close
+ *  delimiter from the parser, and the PSI converter collapses the rule's
+ *  text into a single chameleon node. The first time the node's children
+ *  are needed, the IDE parses its text on its own by invoking the rule's
+ *  method (see {@link SelfContainedRuleElementType}). Opening a file then
+ *  costs in proportion to its outline rather than its full content.
+ *
+ *  Since the outer parse sees just the two delimiters, the rule works best
+ *  when its content between them is optional in the grammar, e.g.
+ *  {@code body : '{' stmt* '}' ;}. Otherwise the outer parse reports an
+ *  error at the close delimiter, which the converter drops along with
+ *  everything else inside the collapsed node.
+ *
+ *  Tree searches such as {@link org.antlr.intellij.adaptor.psi.Trees#findAllRuleNodes}
+ *  and {@link org.antlr.intellij.adaptor.xpath.XPath} find the collapsed
+ *  node itself right away, but anything inside it only once it has been
+ *  parsed; they parse every chameleon they descend into.
+ *
+ *  Register instances with {@link PSIElementTypeFactory#defineRuleIElementType}.
+ */
+public class LazyRuleIElementType extends ILazyParseableElementType implements SelfContainedRuleElementType {
+	private final int ruleIndex;
+	private final int openTokenType;
+	private final int closeTokenType;
+
+	/** @param openTokenType the ANTLR token type the rule's text starts with, e.g. '{'
+	 *  @param closeTokenType the ANTLR token type the rule's text ends with, e.g. '}'
+	 */
+	public LazyRuleIElementType(int ruleIndex,
+	                            @NotNull @NonNls String debugName,
+	                            @Nullable Language language,
+	                            int openTokenType,
+	                            int closeTokenType)
+	{
+		super(debugName, language);
+		this.ruleIndex = ruleIndex;
+		this.openTokenType = openTokenType;
+		this.closeTokenType = closeTokenType;
+	}
+
+	@Override
+	public int getRuleIndex() {
+		return ruleIndex;
+	}
+
+	public int getOpenTokenType() {
+		return openTokenType;
+	}
+
+	public int getCloseTokenType() {
+		return closeTokenType;
+	}
+}
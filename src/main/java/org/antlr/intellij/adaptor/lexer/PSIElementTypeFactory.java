@@ -3,16 +3,28 @@ package org.antlr.intellij.adaptor.lexer;
 import com.intellij.lang.Language;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.TokenSet;
+import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.ActionTransition;
+import org.antlr.v4.runtime.atn.LexerAction;
+import org.antlr.v4.runtime.atn.LexerChannelAction;
+import org.antlr.v4.runtime.atn.LexerTypeAction;
+import org.antlr.v4.runtime.atn.Transition;
 import org.antlr.v4.runtime.misc.Utils;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import static java.util.function.Function.*;
@@ -30,14 +42,34 @@ public class PSIElementTypeFactory {
 	private static final Map<Language, Map<String, Integer>>    tokenNamesCache = new HashMap<>();
 	private static final Map<Language, Map<String, Integer>>    ruleNamesCache = new HashMap<>();
 	private static final Map<Language, TokenIElementType>       eofIElementTypesCache = new HashMap<>();
+	private static final Map<Language, Map<Integer, IElementType>> customRuleIElementTypes = new HashMap<>();
+	private static final Map<Language, Map<Integer, Function<? super Parser, ? extends ParseTree>>> customRuleInvokers = new HashMap<>();
+	private static final Map<Language, TokenSet>                hiddenTokenSetCache = new ConcurrentHashMap<>();
+
+	/** Channel slots in {@link #createTokenChannels} with no or contradicting commands. */
+	private static final int NO_CHANNEL = -1;
+	private static final int CONFLICTING_CHANNELS = -2;
 
 	private PSIElementTypeFactory() {
 	}
 
 	public static void defineLanguageIElementTypes(Language language, Vocabulary vocabulary, String[] ruleNames)
+	{
+		defineLanguageIElementTypes(language, vocabulary, ruleNames, null);
+	}
+
+	/** Also record in each {@link TokenIElementType} the channel the lexer
+	 *  sends its tokens to, derived from the lexer's ATN, e.g.
+	 *  {@code MyLexer._ATN}; see {@link #createTokenChannels}. Tokens on
+	 *  other than the default channel are then hidden from the parser,
+	 *  and {@link #createHiddenTokenSet} or {@link #createChannelTokenSet}
+	 *  give the whitespace and comment sets of the ParserDefinition.
+	 */
+	public static void defineLanguageIElementTypes(Language language, Vocabulary vocabulary, String[] ruleNames,
+	                                               @Nullable ATN lexerATN)
 	{
 		synchronized (PSIElementTypeFactory.class) {
-			tokenIElementTypesCache.computeIfAbsent(language, l -> createTokenIElementTypes(l, vocabulary));
+			tokenIElementTypesCache.computeIfAbsent(language, l -> createTokenIElementTypes(l, vocabulary, lexerATN));
 			ruleIElementTypesCache.computeIfAbsent(language, l -> createRuleIElementTypes(l, ruleNames));
 			tokenNamesCache.computeIfAbsent(language, l -> createTokenTypeMap(vocabulary));
 			ruleNamesCache.computeIfAbsent(language, l -> createRuleIndexMap(ruleNames));
@@ -57,6 +89,57 @@ public class PSIElementTypeFactory {
 		return ruleIElementTypesCache.get(language);
 	}
 
+	/** Use elementType, e.g. a {@link ReparseableRuleIElementType}, rather
+	 *  than the {@link RuleIElementType} for its rule when building PSI.
+	 *  Call this right after {@link #defineLanguageIElementTypes}.
+	 */
+	public static void defineRuleIElementType(Language language, IElementType elementType) {
+		if ( !(elementType instanceof SelfContainedRuleElementType) ) {
+			throw new IllegalArgumentException(elementType+" must implement SelfContainedRuleElementType");
+		}
+		int ruleIndex = ((SelfContainedRuleElementType)elementType).getRuleIndex();
+		synchronized (PSIElementTypeFactory.class) {
+			customRuleIElementTypes.computeIfAbsent(language, l -> new HashMap<>()).put(ruleIndex, elementType);
+		}
+	}
+
+	/** Like {@link #defineRuleIElementType(Language, IElementType)}, also
+	 *  giving the function that parses the rule when its subtree is parsed
+	 *  on its own, e.g. {@code p -> ((MyParser)p).block()}. Without one the
+	 *  parser adaptor calls the rule's method reflectively.
+	 */
+	public static void defineRuleIElementType(Language language, IElementType elementType,
+											  Function<? super Parser, ? extends ParseTree> ruleInvoker)
+	{
+		defineRuleIElementType(language, elementType);
+		int ruleIndex = ((SelfContainedRuleElementType)elementType).getRuleIndex();
+		synchronized (PSIElementTypeFactory.class) {
+			customRuleInvokers.computeIfAbsent(language, l -> new HashMap<>()).put(ruleIndex, ruleInvoker);
+		}
+	}
+
+	/** Get the function given to {@link #defineRuleIElementType(Language, IElementType, Function)}
+	 *  for a rule, or null if there is none.
+	 */
+	public static Function<? super Parser, ? extends ParseTree> getRuleInvoker(Language language, int ruleIndex) {
+		synchronized (PSIElementTypeFactory.class) {
+			Map<Integer, Function<? super Parser, ? extends ParseTree>> invokers = customRuleInvokers.get(language);
+			return invokers!=null ? invokers.get(ruleIndex) : null;
+		}
+	}
+
+	/** Get the element type for PSI nodes of a rule: the one given to
+	 *  {@link #defineRuleIElementType}, if any, else its {@link RuleIElementType}.
+	 */
+	public static IElementType getRuleIElementType(Language language, int ruleIndex) {
+		synchronized (PSIElementTypeFactory.class) {
+			Map<Integer, IElementType> custom = customRuleIElementTypes.get(language);
+			IElementType elementType = custom!=null ? custom.get(ruleIndex) : null;
+			if ( elementType!=null ) return elementType;
+		}
+		return getRuleIElementTypes(language).get(ruleIndex);
+	}
+
 	public static Map<String, Integer> getRuleNameToIndexMap(Language language) {
 		return ruleNamesCache.get(language);
 	}
@@ -78,11 +161,99 @@ public class PSIElementTypeFactory {
 
 	@NotNull
 	public static List<TokenIElementType> createTokenIElementTypes(Language language, Vocabulary vocabulary) {
+		return createTokenIElementTypes(language, vocabulary, null);
+	}
+
+	@NotNull
+	public static List<TokenIElementType> createTokenIElementTypes(Language language, Vocabulary vocabulary,
+	                                                               @Nullable ATN lexerATN) {
+		int[] channels = lexerATN!=null ? createTokenChannels(lexerATN, vocabulary.getMaxTokenType()) : null;
 		return IntStream.rangeClosed(0, vocabulary.getMaxTokenType()).boxed()
-				.map(i -> new TokenIElementType(i, vocabulary.getDisplayName(i), language))
+				.map(i -> new TokenIElementType(i, vocabulary.getDisplayName(i), language,
+												channels!=null ? channels[i] : Token.DEFAULT_CHANNEL))
 				.collect(toList());
 	}
 
+	/** Get the channel of each token type, indexed by type, from the
+	 *  {@code -> channel(...)} commands of the lexer rules; the rule's
+	 *  token type or that of its {@code -> type(...)} command gets the
+	 *  channel. Where the commands of a type's rules contradict each
+	 *  other, the type gets the default channel. Channels set in custom
+	 *  actions are not seen, and a rule with a channel command on only
+	 *  some of its alternatives counts as sending all its tokens there.
+	 */
+	public static int[] createTokenChannels(ATN lexerATN, int maxTokenType) {
+		int nrules = lexerATN.ruleToStartState.length;
+		int[] ruleChannels = new int[nrules];
+		int[] ruleTypes = new int[nrules];
+		Arrays.fill(ruleChannels, NO_CHANNEL);
+		for (int r = 0; r < nrules; r++) {
+			ruleTypes[r] = lexerATN.ruleToTokenType!=null ? lexerATN.ruleToTokenType[r] : Token.INVALID_TYPE;
+		}
+		for (ATNState state : lexerATN.states) {
+			if ( state==null ) continue;
+			for (int i = 0; i < state.getNumberOfTransitions(); i++) {
+				Transition t = state.transition(i);
+				if ( !(t instanceof ActionTransition) ) continue;
+				ActionTransition action = (ActionTransition)t;
+				if ( lexerATN.lexerActions==null || action.actionIndex<0 ||
+					 action.actionIndex>=lexerATN.lexerActions.length ) continue;
+				LexerAction lexerAction = lexerATN.lexerActions[action.actionIndex];
+				if ( lexerAction instanceof LexerChannelAction ) {
+					int channel = ((LexerChannelAction)lexerAction).getChannel();
+					int r = action.ruleIndex;
+					ruleChannels[r] = ruleChannels[r]==NO_CHANNEL || ruleChannels[r]==channel ? channel : CONFLICTING_CHANNELS;
+				}
+				else if ( lexerAction instanceof LexerTypeAction ) {
+					ruleTypes[action.ruleIndex] = ((LexerTypeAction)lexerAction).getType();
+				}
+			}
+		}
+
+		int[] channels = new int[maxTokenType + 1];
+		Arrays.fill(channels, NO_CHANNEL);
+		for (int r = 0; r < nrules; r++) {
+			int type = ruleTypes[r];
+			if ( type<=Token.INVALID_TYPE || type>maxTokenType ) continue; // fragment or unknown
+			int channel = ruleChannels[r]==NO_CHANNEL ? Token.DEFAULT_CHANNEL : ruleChannels[r];
+			channels[type] = channels[type]==NO_CHANNEL || channels[type]==channel ? channel : CONFLICTING_CHANNELS;
+		}
+		for (int type = 0; type <= maxTokenType; type++) {
+			if ( channels[type]<Token.DEFAULT_CHANNEL ) {
+				channels[type] = Token.DEFAULT_CHANNEL;
+			}
+		}
+		return channels;
+	}
+
+	/** The token types on any channel but the default one, i.e. all those
+	 *  the parser doesn't see. Requires channels to have been derived by
+	 *  {@link #defineLanguageIElementTypes(Language, Vocabulary, String[], ATN)}.
+	 *
+	 *  The ParserDefinition's whitespace and comment sets must cover these
+	 *  types, or the PsiBuilder binds the tokens into the PSI nodes around
+	 *  them rather than skipping them the way the parser does.
+	 */
+	public static TokenSet createHiddenTokenSet(Language language) {
+		List<TokenIElementType> tokenIElementTypes = getTokenIElementTypes(language);
+		if ( tokenIElementTypes==null ) return TokenSet.EMPTY;
+		return hiddenTokenSetCache.computeIfAbsent(language, l ->
+			TokenSet.create(tokenIElementTypes.stream()
+								.filter(TokenIElementType::isHidden)
+								.toArray(IElementType[]::new)));
+	}
+
+	/** The token types on the given channels, e.g. {@link Token#HIDDEN_CHANNEL}
+	 *  for whitespace and a custom COMMENTS channel for comments.
+	 */
+	public static TokenSet createChannelTokenSet(Language language, int... channels) {
+		List<TokenIElementType> tokenIElementTypes = getTokenIElementTypes(language);
+		if ( tokenIElementTypes==null ) return TokenSet.EMPTY;
+		return TokenSet.create(tokenIElementTypes.stream()
+								   .filter(t -> IntStream.of(channels).anyMatch(c -> c==t.getChannel()))
+								   .toArray(IElementType[]::new));
+	}
+
 	@NotNull
 	public static List<RuleIElementType> createRuleIElementTypes(Language language, String[] ruleNames) {
 		List<RuleIElementType> result;
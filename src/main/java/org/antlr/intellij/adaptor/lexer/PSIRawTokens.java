@@ -0,0 +1,80 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.psi.tree.IElementType;
+
+import java.util.Arrays;
+
+/** A copy of the raw tokens of a PsiBuilder from its current raw token to
+ *  the end of input, kept as parallel arrays of token types and start
+ *  offsets. Raw indexes are numbered as by {@link PsiBuilder#rawTokenIndex()}.
+ *
+ *  A PsiBuilder must only be used by the thread that owns it, so take the
+ *  copy on that thread and give it to {@link PSITokenStream}s that run on
+ *  other threads, e.g. to parse chunks of a file in parallel. The copy
+ *  never changes and may be read by any number of threads.
+ */
+public class PSIRawTokens {
+	private final int startRawIndex;
+	private final int size;
+	private final IElementType[] types;
+	/** Start offset of each token, followed by the length of the text. */
+	private final int[] starts;
+
+	private PSIRawTokens(int startRawIndex, int size, IElementType[] types, int[] starts) {
+		this.startRawIndex = startRawIndex;
+		this.size = size;
+		this.types = types;
+		this.starts = starts;
+	}
+
+	/** Copy the builder's raw tokens from its current position on without
+	 *  advancing it.
+	 */
+	public static PSIRawTokens copy(PsiBuilder builder) {
+		IElementType[] types = new IElementType[256];
+		int[] starts = new int[257];
+		int n = 0;
+		for (IElementType type = builder.rawLookup(0); type!=null; type = builder.rawLookup(++n)) {
+			if ( n==types.length ) {
+				types = Arrays.copyOf(types, n * 2);
+				starts = Arrays.copyOf(starts, n * 2 + 1);
+			}
+			types[n] = type;
+			starts[n] = builder.rawTokenTypeStart(n);
+		}
+		starts[n] = builder.rawTokenTypeStart(n);
+		return new PSIRawTokens(builder.rawTokenIndex(), n, types, starts);
+	}
+
+	/** The raw index of the first token copied. */
+	public int getStartRawIndex() {
+		return startRawIndex;
+	}
+
+	/** The raw index just past the last token copied. */
+	public int getEndRawIndex() {
+		return startRawIndex + size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** The type of the token at rawIndex, or null outside the copy. */
+	public IElementType getTokenType(int rawIndex) {
+		int i = rawIndex - startRawIndex;
+		return i>=0 && i<size ? types[i] : null;
+	}
+
+	/** The start offset of the token at rawIndex; the end of the text
+	 *  from {@link #getEndRawIndex()} on.
+	 */
+	public int getTokenStart(int rawIndex) {
+		int i = rawIndex - startRawIndex;
+		if ( i<0 ) {
+			throw new IndexOutOfBoundsException("raw index "+rawIndex+" before "+startRawIndex);
+		}
+		return starts[Math.min(i, size)];
+	}
+}
@@ -0,0 +1,124 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.WritableToken;
+import org.antlr.v4.runtime.misc.Pair;
+
+/** A compact token created by {@link PSITokenSource}. It holds only the
+ *  type, index and offsets; the text is cut from the builder's original
+ *  text the first time someone asks for it, which for a parser that only
+ *  compares token types is never. The source pair is shared by all tokens
+ *  of a source. Line and column are always 0 since PsiBuilder doesn't
+ *  track them.
+ */
+public class PSIToken implements WritableToken {
+	protected final Pair<TokenSource, CharStream> source;
+	protected final CharSequence buffer;
+	protected int type;
+	protected int channel = DEFAULT_CHANNEL;
+	protected int start;
+	protected int stop;
+	protected int index = -1;
+	/** Explicitly set text; computed from {@link #buffer} if null. */
+	protected String text;
+
+	public PSIToken(Pair<TokenSource, CharStream> source, CharSequence buffer,
+	                int type, int start, int stop)
+	{
+		this.source = source;
+		this.buffer = buffer;
+		this.type = type;
+		this.start = start;
+		this.stop = stop;
+	}
+
+	@Override
+	public String getText() {
+		if ( text!=null ) return text;
+		if ( type==EOF ) return "<EOF>";
+		if ( buffer==null || stop<start || stop>=buffer.length() ) return "";
+		return buffer.subSequence(start, stop + 1).toString();
+	}
+
+	@Override
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	@Override
+	public void setType(int type) {
+		this.type = type;
+	}
+
+	@Override
+	public int getLine() {
+		return 0;
+	}
+
+	@Override
+	public void setLine(int line) {
+	}
+
+	@Override
+	public int getCharPositionInLine() {
+		return 0;
+	}
+
+	@Override
+	public void setCharPositionInLine(int pos) {
+	}
+
+	@Override
+	public int getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void setChannel(int channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public int getTokenIndex() {
+		return index;
+	}
+
+	@Override
+	public void setTokenIndex(int index) {
+		this.index = index;
+	}
+
+	@Override
+	public int getStartIndex() {
+		return start;
+	}
+
+	@Override
+	public int getStopIndex() {
+		return stop;
+	}
+
+	@Override
+	public TokenSource getTokenSource() {
+		return source.a;
+	}
+
+	@Override
+	public CharStream getInputStream() {
+		return source.b;
+	}
+
+	@Override
+	public String toString() {
+		String txt = getText().replace("\n","\\n").replace("\r","\\r").replace("\t","\\t");
+		return "[@"+index+","+start+":"+stop+"='"+txt+"',<"+type+">"+
+			   (channel>0 ? ",channel="+channel : "")+"]";
+	}
+}
@@ -2,8 +2,8 @@ package org.antlr.intellij.adaptor.lexer;
 
 import com.intellij.lang.ParserDefinition;
 import com.intellij.lang.PsiBuilder;
-import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
+import org.antlr.intellij.adaptor.CancellationThrottle;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.Token;
@@ -19,10 +19,16 @@ import org.antlr.v4.runtime.misc.Pair;
  *  control and asks our ParserDefinition for the lexer and parser. This
  *  is how we hook them together. When IDE ask ParserDefinition for a
  *  parser, we will create one of these attached to the PsiBuilder.
+ *
+ *  Unless another {@link TokenFactory} is set, tokens are {@link PSIToken}s
+ *  whose text is only computed on demand from the builder's original text.
  */
 public class PSITokenSource implements TokenSource {
 	protected PsiBuilder builder;
 	protected TokenFactory<?> tokenFactory = CommonTokenFactory.DEFAULT;
+	/** Shared by all tokens from this source. */
+	protected final Pair<TokenSource, CharStream> source = new Pair<>(this, null);
+	protected final CancellationThrottle cancellation = new CancellationThrottle();
 
 	public PSITokenSource(PsiBuilder builder) {
 		this.builder = builder;
@@ -38,29 +44,38 @@ public class PSITokenSource implements TokenSource {
 	 *  ANTLR lexer).  The {@link ANTLRLexerAdaptor} creates tokens via
 	 *  an ANTLR lexer but converts to {@link TokenIElementType} and here
 	 *  we have to convert back to an ANTLR token using what info we
-	 *  can get from the builder. We lose info such as the original channel.
-	 *  So, whitespace and comments (typically hidden channel) will look like
-	 *  real tokens. Jetbrains uses {@link ParserDefinition#getWhitespaceTokens()}
-	 *  and {@link ParserDefinition#getCommentTokens()} to strip these before
+	 *  can get from the builder. The original channel survives only as
+	 *  the {@link TokenIElementType#getChannel() channel of the token's
+	 *  type}, if the language's types were defined with the lexer's ATN,
+	 *  so that a CommonTokenStream hides off-channel tokens from the parser.
+	 *  Jetbrains also uses {@link ParserDefinition#getWhitespaceTokens()}
+	 *  and {@link ParserDefinition#getCommentTokens()} to strip tokens before
 	 *  our ANTLR parser sees them.
 	 */
 	@Override
 	public Token nextToken() {
-		ProgressIndicatorProvider.checkCanceled();
+		cancellation.check();
 
 		TokenIElementType ideaTType = (TokenIElementType)builder.getTokenType();
 		int type = ideaTType!=null ? ideaTType.getANTLRTokenType() : Token.EOF;
+		int channel = ideaTType!=null ? ideaTType.getChannel() : Token.DEFAULT_CHANNEL;
 
-		int channel = Token.DEFAULT_CHANNEL;
-		Pair<TokenSource, CharStream> source = new Pair<>(this, null);
-		String text = builder.getTokenText();
 		int start = builder.getCurrentOffset();
-		int length = text != null ? text.length() : 0;
-		int stop = start + length - 1;
-		// PsiBuilder doesn't provide line, column info
-		int line = 0;
-		int charPositionInLine = 0;
-		Token t = tokenFactory.create(source, type, text, channel, start, stop, line, charPositionInLine);
+		// the current token ends where the next raw token (possibly whitespace) starts
+		int stop = ideaTType!=null ? builder.rawTokenTypeStart(1) - 1 : start - 1;
+		Token t;
+		if ( tokenFactory==CommonTokenFactory.DEFAULT ) {
+			PSIToken token = new PSIToken(source, builder.getOriginalText(), type, start, stop);
+			token.setChannel(channel);
+			t = token;
+		}
+		else {
+			String text = builder.getTokenText();
+			// PsiBuilder doesn't provide line, column info
+			int line = 0;
+			int charPositionInLine = 0;
+			t = tokenFactory.create(source, type, text, channel, start, stop, line, charPositionInLine);
+		}
 		builder.advanceLexer();
 //		System.out.println("TOKEN: "+t);
 		return t;
@@ -0,0 +1,296 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import org.antlr.intellij.adaptor.CancellationThrottle;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+import java.util.Arrays;
+
+/** A random-access ANTLR token stream that reads the tokens already lexed
+ *  by a PsiBuilder without advancing it. Unlike {@link PSITokenSource}
+ *  wrapped in a {@link org.antlr.v4.runtime.CommonTokenStream}, the builder
+ *  stays where it was when the stream was created, so the parser adaptor
+ *  no longer needs to mark and roll back the builder around the parse,
+ *  and the builder may even be advanced while the parser is running.
+ *
+ *  Token types and offsets come straight from
+ *  {@link PsiBuilder#rawLookup} and {@link PsiBuilder#rawTokenTypeStart};
+ *  the only per-token state kept here is the raw index of each visible
+ *  token and, once the parser has looked at it, its {@link PSIToken}.
+ *  Raw tokens in {@code hiddenTokens} (normally the whitespace and
+ *  comment tokens of the ParserDefinition, which the builder skips too)
+ *  and tokens whose {@link TokenIElementType#isHidden() type is on a
+ *  hidden channel} are not visible to the parser; runs of them are
+ *  skipped in one go.
+ *
+ *  A stream may be limited to a range of raw tokens, e.g. one chunk of a
+ *  file parsed on its own; it then reports EOF at the end of the range.
+ *  A stream reading a {@link PSIRawTokens} copy instead of the builder
+ *  only touches the builder's original text, so it can be read on
+ *  another thread while the builder's owner carries on.
+ */
+public class PSITokenStream implements TokenStream {
+	protected final PsiBuilder builder;
+	protected final TokenSet hiddenTokens;
+	/** The tokens read instead of the builder's, or null to read the builder. */
+	protected final PSIRawTokens rawTokens;
+	protected final PSITokenSource tokenSource;
+	protected final CharSequence text;
+	/** Shared by all tokens from this stream. */
+	protected final Pair<TokenSource, CharStream> source;
+	/** Raw index at which the stream reports EOF. */
+	protected final int endRawIndex;
+	protected final CancellationThrottle cancellation = new CancellationThrottle();
+
+	/** Raw builder index of each visible token fetched so far. */
+	private int[] rawIndexes = new int[64];
+	private Token[] tokens = new Token[64];
+	/** Number of visible tokens fetched so far, including EOF once seen. */
+	private int n;
+	/** Raw index of the next raw token to examine. */
+	private int nextRawIndex;
+	private boolean fetchedEOF;
+
+	/** Index into the visible tokens of LT(1). */
+	private int p;
+
+	public PSITokenStream(PsiBuilder builder, TokenSet hiddenTokens) {
+		this(builder, hiddenTokens, builder.rawTokenIndex(), Integer.MAX_VALUE);
+	}
+
+	/** Create a stream over the raw tokens from startRawIndex (inclusive)
+	 *  to endRawIndex (exclusive), as numbered by {@link PsiBuilder#rawTokenIndex()}.
+	 */
+	public PSITokenStream(PsiBuilder builder, TokenSet hiddenTokens, int startRawIndex, int endRawIndex) {
+		this(builder, hiddenTokens, null, startRawIndex, endRawIndex);
+	}
+
+	/** Create a stream over the raw tokens from startRawIndex (inclusive)
+	 *  to endRawIndex (exclusive) of rawTokens, a copy of builder's tokens;
+	 *  see {@link PSIRawTokens}.
+	 */
+	public PSITokenStream(PsiBuilder builder, TokenSet hiddenTokens, PSIRawTokens rawTokens,
+						  int startRawIndex, int endRawIndex)
+	{
+		this.builder = builder;
+		this.hiddenTokens = hiddenTokens;
+		this.rawTokens = rawTokens;
+		this.tokenSource = new PSITokenSource(builder);
+		this.source = new Pair<>(tokenSource, null);
+		this.text = builder.getOriginalText();
+		this.nextRawIndex = startRawIndex;
+		this.endRawIndex = endRawIndex;
+	}
+
+	/** The throttle of the cancellation checks made while reading tokens. */
+	public CancellationThrottle getCancellationThrottle() {
+		return cancellation;
+	}
+
+	@Override
+	public Token LT(int k) {
+		if ( k==0 ) return null;
+		if ( k<0 ) {
+			int i = p + k;
+			return i>=0 ? get(i) : null;
+		}
+		int i = p + k - 1;
+		sync(i);
+		return get(Math.min(i, n - 1));
+	}
+
+	@Override
+	public int LA(int i) {
+		Token t = LT(i);
+		return t!=null ? t.getType() : Token.INVALID_TYPE;
+	}
+
+	@Override
+	public void consume() {
+		if ( LA(1)==Token.EOF ) {
+			throw new IllegalStateException("cannot consume EOF");
+		}
+		p++;
+	}
+
+	@Override
+	public Token get(int index) {
+		sync(index);
+		if ( index<0 || index>=n ) {
+			throw new IndexOutOfBoundsException("token index "+index+" out of range 0.."+(n-1));
+		}
+		Token t = tokens[index];
+		if ( t==null ) {
+			t = createToken(index);
+			tokens[index] = t;
+		}
+		return t;
+	}
+
+	protected Token createToken(int index) {
+		int rawIndex = rawIndexes[index];
+		IElementType type = rawLookup(rawIndex);
+		int start = rawTokenStart(rawIndex);
+		PSIToken t;
+		if ( type==null ) {
+			t = new PSIToken(source, text, Token.EOF, start, start - 1);
+		}
+		else {
+			int antlrType = type instanceof TokenIElementType ?
+				((TokenIElementType)type).getANTLRTokenType() :
+				Token.INVALID_TYPE;
+			t = new PSIToken(source, text, antlrType, start, rawTokenStart(rawIndex + 1) - 1);
+		}
+		t.setTokenIndex(index);
+		return t;
+	}
+
+	/** If LT(1) has type openTokenType, hide every token up to, but not
+	 *  including, its matching closeTokenType so that the parser sees the
+	 *  close delimiter next. Tokens past LT(1) that were already fetched,
+	 *  e.g. during prediction, are fetched again. Nothing is hidden if the
+	 *  delimiters are unbalanced.
+	 *
+	 *  @return true if the tokens between the delimiters were hidden.
+	 */
+	public boolean skipBalanced(int openTokenType, int closeTokenType) {
+		sync(p);
+		if ( p>=n || fetchedEOF && p==n-1 ) return false;
+		int depth = 0;
+		for (int raw = rawIndexes[p]; ; raw++) {
+			cancellation.check();
+			IElementType type = rawLookup(raw);
+			if ( type==null ) return false;
+			if ( isHidden(type) || !(type instanceof TokenIElementType) ) continue;
+			int antlrType = ((TokenIElementType)type).getANTLRTokenType();
+			if ( raw==rawIndexes[p] && antlrType!=openTokenType ) return false;
+			if ( antlrType==openTokenType ) {
+				depth++;
+			}
+			else if ( antlrType==closeTokenType && --depth==0 ) {
+				Arrays.fill(tokens, p + 1, n, null);
+				n = p + 1;
+				nextRawIndex = raw;
+				fetchedEOF = false;
+				return true;
+			}
+		}
+	}
+
+	/** Make sure visible token i has been located, unless EOF comes first. */
+	private void sync(int i) {
+		while ( n<=i && !fetchedEOF ) {
+			cancellation.check();
+			IElementType type = rawLookup(nextRawIndex);
+			while ( type!=null && isHidden(type) ) {
+				type = rawLookup(++nextRawIndex);
+			}
+			add(nextRawIndex);
+			if ( type==null ) {
+				fetchedEOF = true;
+			}
+			else {
+				nextRawIndex++;
+			}
+		}
+	}
+
+	private boolean isHidden(IElementType type) {
+		return type instanceof TokenIElementType && ((TokenIElementType)type).isHidden() ||
+			   hiddenTokens.contains(type);
+	}
+
+	/** The type of the raw token at rawIndex or null past the end. */
+	private IElementType rawLookup(int rawIndex) {
+		if ( rawIndex>=endRawIndex ) return null;
+		if ( rawTokens!=null ) return rawTokens.getTokenType(rawIndex);
+		return builder.rawLookup(rawIndex - builder.rawTokenIndex());
+	}
+
+	/** The start offset of the raw token at rawIndex. */
+	private int rawTokenStart(int rawIndex) {
+		if ( rawTokens!=null ) return rawTokens.getTokenStart(rawIndex);
+		return builder.rawTokenTypeStart(rawIndex - builder.rawTokenIndex());
+	}
+
+	private void add(int rawIndex) {
+		if ( n==rawIndexes.length ) {
+			rawIndexes = Arrays.copyOf(rawIndexes, n * 2);
+			tokens = Arrays.copyOf(tokens, n * 2);
+		}
+		rawIndexes[n++] = rawIndex;
+	}
+
+	@Override
+	public TokenSource getTokenSource() {
+		return tokenSource;
+	}
+
+	@Override
+	public String getText(Interval interval) {
+		int start = interval.a;
+		int stop = interval.b;
+		if ( start<0 || stop<0 ) return "";
+		sync(stop);
+		if ( stop>=n ) stop = n - 1;
+		if ( start>stop ) return "";
+		int from = get(start).getStartIndex();
+		int to = get(stop).getStopIndex() + 1;
+		return to>from ? text.subSequence(from, to).toString() : "";
+	}
+
+	@Override
+	public String getText() {
+		return getText(Interval.of(0, size() - 1));
+	}
+
+	@Override
+	public String getText(RuleContext ctx) {
+		return getText(ctx.getSourceInterval());
+	}
+
+	@Override
+	public String getText(Token start, Token stop) {
+		if ( start==null || stop==null ) return "";
+		return getText(Interval.of(start.getTokenIndex(), stop.getTokenIndex()));
+	}
+
+	@Override
+	public int mark() {
+		return 0;
+	}
+
+	@Override
+	public void release(int marker) {
+	}
+
+	@Override
+	public int index() {
+		return p;
+	}
+
+	@Override
+	public void seek(int index) {
+		sync(index);
+		p = Math.max(0, Math.min(index, n - 1));
+	}
+
+	@Override
+	public int size() {
+		sync(Integer.MAX_VALUE - 1);
+		return n;
+	}
+
+	@Override
+	public String getSourceName() {
+		return tokenSource.getSourceName();
+	}
+}
@@ -0,0 +1,112 @@
+package org.antlr.intellij.adaptor.lexer;
+
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IReparseableElementType;
+import com.intellij.psi.tree.TokenSet;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/** A {@link RuleIElementType} counterpart for rules such as blocks or
+ *  function bodies whose subtrees the plugin declares self-contained.
+ *  When an edit lands inside such a subtree, the IDE reparses just its
+ *  text by calling the rule's method (see {@link SelfContainedRuleElementType})
+ *  and splices in the result, so typing latency depends on the size of
+ *  the block rather than of the file.
+ *
+ *  The new text is only reparsed in place when it lexes back to the
+ *  lexer's initial state and, if delimiter token types were given, starts
+ *  with the open delimiter and ends with the matching close delimiter.
+ *  Otherwise, e.g. after deleting a closing brace, the IDE reparses a
+ *  larger enclosing region as usual.
+ */
+public class ReparseableRuleIElementType extends IReparseableElementType implements SelfContainedRuleElementType {
+	/** Token type used when a rule has no delimiters. */
+	public static final int NO_DELIMITER = -2;
+
+	private final int ruleIndex;
+	private final int openTokenType;
+	private final int closeTokenType;
+
+	public ReparseableRuleIElementType(int ruleIndex,
+	                                   @NotNull @NonNls String debugName,
+	                                   @Nullable Language language)
+	{
+		this(ruleIndex, debugName, language, NO_DELIMITER, NO_DELIMITER);
+	}
+
+	/** @param openTokenType the ANTLR token type the rule's text starts with, e.g. '{'
+	 *  @param closeTokenType the ANTLR token type the rule's text ends with, e.g. '}'
+	 */
+	public ReparseableRuleIElementType(int ruleIndex,
+	                                   @NotNull @NonNls String debugName,
+	                                   @Nullable Language language,
+	                                   int openTokenType,
+	                                   int closeTokenType)
+	{
+		super(debugName, language);
+		this.ruleIndex = ruleIndex;
+		this.openTokenType = openTokenType;
+		this.closeTokenType = closeTokenType;
+	}
+
+	@Override
+	public int getRuleIndex() {
+		return ruleIndex;
+	}
+
+	public int getOpenTokenType() {
+		return openTokenType;
+	}
+
+	public int getCloseTokenType() {
+		return closeTokenType;
+	}
+
+	@Override
+	public boolean isParsable(@NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+		ParserDefinition definition = LanguageParserDefinitions.INSTANCE.forLanguage(getLanguage());
+		if ( definition==null ) return false;
+		TokenSet hidden = TokenSet.orSet(definition.getWhitespaceTokens(), definition.getCommentTokens(),
+										 PSIElementTypeFactory.createHiddenTokenSet(getLanguage()));
+		return isSelfContained(definition.createLexer(project), buffer, hidden, openTokenType, closeTokenType);
+	}
+
+	/** Lex buffer and check that it ends in the lexer's initial state and,
+	 *  unless the delimiters are {@link #NO_DELIMITER}, that it is a
+	 *  single balanced open ... close group, ignoring hidden tokens.
+	 */
+	static boolean isSelfContained(Lexer lexer, CharSequence buffer, TokenSet hidden,
+	                               int openTokenType, int closeTokenType)
+	{
+		lexer.start(buffer);
+		int initialState = lexer.getState();
+		boolean delimited = openTokenType!=NO_DELIMITER;
+		int depth = 0;
+		boolean first = true;
+		for (IElementType type; (type = lexer.getTokenType())!=null; lexer.advance()) {
+			if ( !delimited || hidden.contains(type) ) continue;
+			int antlrType = type instanceof TokenIElementType ? ((TokenIElementType)type).getANTLRTokenType() : 0;
+			if ( first ) {
+				if ( antlrType!=openTokenType ) return false;
+				first = false;
+			}
+			else if ( depth==0 ) {
+				return false; // text after the closing delimiter
+			}
+			if ( antlrType==openTokenType ) {
+				depth++;
+			}
+			else if ( antlrType==closeTokenType ) {
+				depth--;
+			}
+		}
+		if ( lexer.getState()!=initialState ) return false;
+		return !delimited || (!first && depth==0);
+	}
+}
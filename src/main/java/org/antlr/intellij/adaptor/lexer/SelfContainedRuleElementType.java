@@ -0,0 +1,17 @@
+package org.antlr.intellij.adaptor.lexer;
+
+/** An element type for an ANTLR rule whose subtree can be parsed on its
+ *  own, starting at the rule, without the rest of the file. The IDE hands
+ *  such a type to {@link org.antlr.intellij.adaptor.parser.ANTLRParserAdaptor}
+ *  as the root to parse; the adaptor then invokes the rule instead of
+ *  the start rule.
+ *
+ *  Register implementations with
+ *  {@link PSIElementTypeFactory#defineRuleIElementType} so the PSI
+ *  converter uses them in place of the plain {@link RuleIElementType},
+ *  optionally with a function invoking the rule; otherwise the adaptor
+ *  calls the rule's method reflectively.
+ */
+public interface SelfContainedRuleElementType {
+	int getRuleIndex();
+}
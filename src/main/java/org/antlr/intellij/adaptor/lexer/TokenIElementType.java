@@ -2,6 +2,7 @@ package org.antlr.intellij.adaptor.lexer;
 
 import com.intellij.lang.Language;
 import com.intellij.psi.tree.IElementType;
+import org.antlr.v4.runtime.Token;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,19 +16,45 @@ import org.jetbrains.annotations.Nullable;
  *
  *  We differentiate between parse tree subtree roots and tokens with
  *  {@link RuleIElementType} and {@link TokenIElementType}, respectively.
+ *
+ *  The element type also carries the channel the lexer sends tokens of
+ *  its type to, which the IDE's tokens otherwise lose; see
+ *  {@link PSIElementTypeFactory#createTokenChannels}.
  */
 public class TokenIElementType extends IElementType {
 	private final int antlrTokenType;
+	private final int channel;
 
 	public TokenIElementType(int antlrTokenType,
 	                         @NotNull @NonNls String debugName,
 	                         @Nullable Language language)
+	{
+		this(antlrTokenType, debugName, language, Token.DEFAULT_CHANNEL);
+	}
+
+	public TokenIElementType(int antlrTokenType,
+	                         @NotNull @NonNls String debugName,
+	                         @Nullable Language language,
+	                         int channel)
 	{
 		super(debugName, language);
 		this.antlrTokenType = antlrTokenType;
+		this.channel = channel;
 	}
 
 	public int getANTLRTokenType() {
 		return antlrTokenType;
 	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	/** True if the parser never sees tokens of this type. The PsiBuilder
+	 *  only skips it if the ParserDefinition returns it as whitespace or
+	 *  a comment; see {@link PSIElementTypeFactory#createHiddenTokenSet}.
+	 */
+	public boolean isHidden() {
+		return channel!=Token.DEFAULT_CHANNEL;
+	}
 }
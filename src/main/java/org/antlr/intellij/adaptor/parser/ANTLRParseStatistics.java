@@ -0,0 +1,102 @@
+package org.antlr.intellij.adaptor.parser;
+
+import com.intellij.lang.Language;
+import org.antlr.intellij.adaptor.CancellationThrottle;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters kept per Language by {@link ANTLRParserAdaptor}, e.g. to tell
+ *  whether {@link ANTLRParserAdaptor#isTwoStageParse() two-stage parsing}
+ *  pays off for a language. A high fallback rate means most files need
+ *  full LL prediction or have syntax errors, and the fast SLL pass is
+ *  mostly wasted.
+ *
+ *  The cancellation counters add up the {@link CancellationThrottle}s of
+ *  the token streams, PSI conversion and builder loops of each parse, to
+ *  show how many calls the throttles saved and how long cancellation
+ *  could go unnoticed.
+ */
+public class ANTLRParseStatistics {
+	private static final Map<Language, ANTLRParseStatistics> statistics = new ConcurrentHashMap<>();
+
+	private final AtomicLong twoStageParses = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private final AtomicLong recoveryBudgetsExceeded = new AtomicLong();
+	private final AtomicLong cancellationCalls = new AtomicLong();
+	private final AtomicLong cancellationChecks = new AtomicLong();
+	private final AtomicLong maxCancellationLatencyNanos = new AtomicLong();
+
+	protected ANTLRParseStatistics() {
+	}
+
+	public static ANTLRParseStatistics getInstance(Language language) {
+		return statistics.computeIfAbsent(language, l -> new ANTLRParseStatistics());
+	}
+
+	/** The number of parses that started with an SLL pass. */
+	public long getTwoStageParseCount() {
+		return twoStageParses.get();
+	}
+
+	/** The number of SLL passes that bailed out and were rerun with full LL. */
+	public long getFallbackCount() {
+		return fallbacks.get();
+	}
+
+	/** The fraction of two-stage parses that fell back to LL, or 0 if none ran. */
+	public double getFallbackRate() {
+		long n = twoStageParses.get();
+		return n==0 ? 0 : (double)fallbacks.get() / n;
+	}
+
+	/** The number of parses that gave up on error recovery; see
+	 *  {@link ANTLRParserAdaptor#getMaxSyntaxErrors()}.
+	 */
+	public long getRecoveryBudgetExceededCount() {
+		return recoveryBudgetsExceeded.get();
+	}
+
+	/** The number of times parses asked whether to check for cancellation. */
+	public long getCancellationCallCount() {
+		return cancellationCalls.get();
+	}
+
+	/** The number of times parses really checked for cancellation. */
+	public long getCancellationCheckCount() {
+		return cancellationChecks.get();
+	}
+
+	/** The longest time a parse went without checking for cancellation. */
+	public long getMaxCancellationLatencyNanos() {
+		return maxCancellationLatencyNanos.get();
+	}
+
+	public void reset() {
+		twoStageParses.set(0);
+		fallbacks.set(0);
+		recoveryBudgetsExceeded.set(0);
+		cancellationCalls.set(0);
+		cancellationChecks.set(0);
+		maxCancellationLatencyNanos.set(0);
+	}
+
+	void recordTwoStageParse() {
+		twoStageParses.incrementAndGet();
+	}
+
+	void recordFallback() {
+		fallbacks.incrementAndGet();
+	}
+
+	void recordRecoveryBudgetExceeded() {
+		recoveryBudgetsExceeded.incrementAndGet();
+	}
+
+	void recordCancellation(CancellationThrottle throttle) {
+		cancellationCalls.addAndGet(throttle.getCallCount());
+		cancellationChecks.addAndGet(throttle.getCheckCount());
+		maxCancellationLatencyNanos.accumulateAndGet(throttle.getMaxObservedLatencyNanos(), Math::max);
+	}
+}
@@ -2,43 +2,148 @@ package org.antlr.intellij.adaptor.parser;
 
 import com.intellij.lang.Language;
 import com.intellij.lang.PsiBuilder;
-import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.psi.tree.IElementType;
+import org.antlr.intellij.adaptor.CancellationThrottle;
+import org.antlr.intellij.adaptor.lexer.LazyRuleIElementType;
 import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
 import org.antlr.intellij.adaptor.lexer.RuleIElementType;
+import org.antlr.intellij.adaptor.lexer.SelfContainedRuleElementType;
 import org.antlr.intellij.adaptor.lexer.TokenIElementType;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.RuleNode;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.util.AbstractMap;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /** This is how we build an intellij PSI tree from an ANTLR parse tree.
  *  We let the ANTLR parser build its kind of ParseTree and then
- *  we convert to a PSI tree in one go using a standard ANTLR ParseTreeListener.
+ *  we convert to a PSI tree in one go using a standard ANTLR ParseTreeListener,
+ *  driven by {@link #walk} rather than the recursive ParseTreeWalker so
+ *  that trees of any depth can be converted.
  *
  *  The list of SyntaxError objects are pulled from the parser and used
  *  for error message highlighting (error nodes don't have the info).
+ *
+ *  The same listener can also be attached to the parser as a parse
+ *  listener with {@link #startStreaming}, in which case PSI markers are
+ *  created while the parser runs and rule contexts aren't linked into a
+ *  ParseTree. The ANTLR runtime still creates a terminal or error node
+ *  for each token it hands to parse listeners, and adds it to the
+ *  current context, but those nodes become garbage with the context.
  */
 public class ANTLRParseTreeToPSIConverter implements ParseTreeListener {
 	protected final Language language;
 	protected final PsiBuilder builder;
-	protected Map<RecognitionException, SyntaxError> syntaxErrors;
+	protected SyntaxErrorIndex syntaxErrors;
 	protected final Deque<PsiBuilder.Marker> markers = new ArrayDeque<>();
 
 	protected final List<TokenIElementType> tokenElementTypes;
 	protected final List<RuleIElementType> ruleElementTypes;
+	/** Element type of each rule's markers, including those replaced with
+	 *  {@link PSIElementTypeFactory#defineRuleIElementType}.
+	 */
+	private final IElementType[] ruleMarkerTypes;
+
+	/** The element type being parsed. When it's a self-contained rule, the
+	 *  adaptor's root marker stands for the outermost invocation of that
+	 *  rule, which therefore gets no marker of its own.
+	 */
+	protected IElementType root;
+
+	/** Rules whose single-child contexts get no marker; see {@link #isChainLink}. */
+	protected ChainRuleCollapsePolicy chainRulePolicy = ChainRuleCollapsePolicy.NONE;
+
+	protected final CancellationThrottle cancellation = new CancellationThrottle();
 
-	/** Map an error's start char index (usually start of a token) to the error object. */
-	protected Map<Integer, SyntaxError> tokenToErrorMap = new HashMap<>();
+	/** Errors by start char index (usually start of a token). */
+	protected final SyntaxErrorIndex errorIndex = new SyntaxErrorIndex();
+	/** Index in errorIndex of the first error at or after the last offset
+	 *  looked up; see {@link #getErrorAt}.
+	 */
+	private int nextError;
+
+	/** Map an error's start char index (usually start of a token) to the
+	 *  first error there. A view of {@link #errorIndex}; putting records
+	 *  the error unless there already is one at that index.
+	 *
+	 *  @deprecated use {@link #getErrorAt} and {@link #recordError}.
+	 */
+	@Deprecated
+	protected Map<Integer, SyntaxError> tokenToErrorMap = new AbstractMap<Integer, SyntaxError>() {
+		@Override
+		public SyntaxError get(Object key) {
+			return key instanceof Integer ? errorIndex.getFirstAt((Integer) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key)!=null;
+		}
+
+		@Override
+		public SyntaxError put(Integer key, SyntaxError value) {
+			SyntaxError first = errorIndex.getFirstAt(key);
+			if ( first==null ) {
+				recordError(value);
+			}
+			return first;
+		}
+
+		@Override
+		public Set<Entry<Integer, SyntaxError>> entrySet() {
+			Map<Integer, SyntaxError> first = new LinkedHashMap<>();
+			for (int i = 0; i < errorIndex.size(); i++) {
+				first.putIfAbsent(errorIndex.getOffset(i), errorIndex.get(i));
+			}
+			return Collections.unmodifiableMap(first).entrySet();
+		}
+	};
+
+	/** The parser we are attached to while streaming; null when walking a ParseTree. */
+	protected Parser streamingParser;
+
+	/** Records errors as the parser reports them while streaming. */
+	private final ANTLRErrorListener streamingErrorListener = new BaseErrorListener() {
+		@Override
+		public void syntaxError(Recognizer<?, ?> recognizer,
+		                        Object offendingSymbol,
+		                        int line, int charPositionInLine,
+		                        String msg, RecognitionException e)
+		{
+			recordError(SyntaxError.fromReport(recognizer, (Token) offendingSymbol, line, charPositionInLine, msg, e));
+		}
+	};
+
+	/** The most recently completed rule marker and the start token of its
+	 *  context. Left-recursive rules announce the enclosing context only
+	 *  after the left operand is done, so while streaming we have to wrap
+	 *  the operand's marker with {@link PsiBuilder.Marker#precede()}.
+	 */
+	private PsiBuilder.Marker lastDoneMarker;
+	private Token lastDoneStart;
+
+	/** Nesting depth of rules within the outermost {@link LazyRuleIElementType}
+	 *  rule being visited, counting that rule; 0 outside of one. Such a rule
+	 *  becomes a single collapsed node, so nothing inside it gets a marker.
+	 */
+	private int collapsedDepth;
 
 	public ANTLRParseTreeToPSIConverter(Language language, Parser parser, PsiBuilder builder) {
 		this.language = language;
@@ -46,21 +151,133 @@ public class ANTLRParseTreeToPSIConverter implements ParseTreeListener {
 
 		this.tokenElementTypes = PSIElementTypeFactory.getTokenIElementTypes(language);
 		this.ruleElementTypes = PSIElementTypeFactory.getRuleIElementTypes(language);
+		this.ruleMarkerTypes = new IElementType[ruleElementTypes.size()];
+		for (int i = 0; i < ruleMarkerTypes.length; i++) {
+			ruleMarkerTypes[i] = PSIElementTypeFactory.getRuleIElementType(language, i);
+		}
 
 		for (ANTLRErrorListener listener : parser.getErrorListeners()) {
 			if (listener instanceof SyntaxErrorListener) {
-				syntaxErrors = ((SyntaxErrorListener) listener).getErrorMap();
-				for (SyntaxError error : syntaxErrors.values()) {
-					// record first error per token
-					int StartIndex = error.getOffendingSymbol().getStartIndex();
-					if ( !tokenToErrorMap.containsKey(StartIndex) ) {
-						tokenToErrorMap.put(StartIndex, error);
-					}
+				syntaxErrors = ((SyntaxErrorListener) listener).getErrorIndex();
+				for (int i = 0; i < syntaxErrors.size(); i++) {
+					recordError(syntaxErrors.get(i));
 				}
 			}
 		}
 	}
 
+	protected void recordError(SyntaxError error) {
+		errorIndex.add(error);
+	}
+
+	/** Return the first error recorded at offset, or null. Tokens are
+	 *  visited in input order, so rather than searching, we walk the
+	 *  sorted errors along with them; without errors this is a size check.
+	 */
+	protected SyntaxError getErrorAt(int offset) {
+		int n = errorIndex.size();
+		if ( n==0 ) return null;
+		if ( nextError>0 && errorIndex.getOffset(nextError - 1)>=offset ) {
+			// went backwards, or errors were recorded before the cursor while streaming
+			nextError = errorIndex.ceilingIndex(offset);
+		}
+		while ( nextError<n && errorIndex.getOffset(nextError)<offset ) {
+			nextError++;
+		}
+		return nextError<n && errorIndex.getOffset(nextError)==offset ? errorIndex.get(nextError) : null;
+	}
+
+	/** Attach this converter to the parser so that PSI markers are created
+	 *  while it parses. The parser stops building a ParseTree until
+	 *  {@link #stopStreaming} is called; errors are picked up as they are
+	 *  reported since tokens are converted right after being matched.
+	 */
+	public void startStreaming(Parser parser) {
+		streamingParser = parser;
+		parser.setBuildParseTree(false);
+		parser.addErrorListener(streamingErrorListener);
+		parser.addParseListener(this);
+	}
+
+	/** Detach from the parser and restore ParseTree construction. */
+	public void stopStreaming(Parser parser) {
+		parser.removeParseListener(this);
+		parser.removeErrorListener(streamingErrorListener);
+		parser.setBuildParseTree(true);
+		streamingParser = null;
+		lastDoneMarker = null;
+		collapsedDepth = 0;
+		lastDoneStart = null;
+	}
+
+	/** Walk tree depth-first and call the same listener methods, in the
+	 *  same order, as {@link org.antlr.v4.runtime.tree.ParseTreeWalker#DEFAULT}
+	 *  would, including each context's generated enterRule/exitRule. The
+	 *  walk keeps its own stack of contexts and child indexes instead of
+	 *  recursing, so deeply nested input such as long generated expression
+	 *  chains cannot overflow the thread's stack.
+	 */
+	public void walk(ParseTree tree) {
+		if ( !(tree instanceof RuleNode) ) {
+			visitLeaf(tree);
+			return;
+		}
+		ParserRuleContext[] contexts = new ParserRuleContext[32];
+		int[] nextChild = new int[32];
+		int top = 0;
+		contexts[0] = enterRule((RuleNode) tree);
+		while ( top>=0 ) {
+			ParserRuleContext ctx = contexts[top];
+			int i = nextChild[top];
+			if ( i>=ctx.getChildCount() ) {
+				exitRule(ctx);
+				contexts[top--] = null;
+				continue;
+			}
+			nextChild[top] = i + 1;
+			ParseTree child = ctx.getChild(i);
+			if ( !(child instanceof RuleNode) ) {
+				visitLeaf(child);
+				continue;
+			}
+			if ( ++top==contexts.length ) {
+				contexts = Arrays.copyOf(contexts, top * 2);
+				nextChild = Arrays.copyOf(nextChild, top * 2);
+			}
+			contexts[top] = enterRule((RuleNode) child);
+			nextChild[top] = 0;
+		}
+	}
+
+	private void visitLeaf(ParseTree node) {
+		if ( node instanceof ErrorNode ) {
+			visitErrorNode((ErrorNode) node);
+		}
+		else if ( node instanceof TerminalNode ) {
+			visitTerminal((TerminalNode) node);
+		}
+	}
+
+	private ParserRuleContext enterRule(RuleNode node) {
+		ParserRuleContext ctx = (ParserRuleContext) node.getRuleContext();
+		enterEveryRule(ctx);
+		ctx.enterRule(this);
+		return ctx;
+	}
+
+	private void exitRule(ParserRuleContext ctx) {
+		ctx.exitRule(this);
+		exitEveryRule(ctx);
+	}
+
+	public void setRoot(IElementType root) {
+		this.root = root;
+	}
+
+	public void setChainRuleCollapsePolicy(ChainRuleCollapsePolicy chainRulePolicy) {
+		this.chainRulePolicy = chainRulePolicy;
+	}
+
 	protected final Language getLanguage() {
 		return language;
 	}
@@ -81,10 +298,24 @@ public class ANTLRParseTreeToPSIConverter implements ParseTreeListener {
 		return ruleElementTypes;
 	}
 
+	protected IElementType getRuleElementType(int ruleIndex) {
+		return ruleMarkerTypes[ruleIndex];
+	}
+
+	/** Advance the builder to offset, passing tokens the parser never saw,
+	 *  such as the content of a lazy rule.
+	 */
+	protected void advanceTo(int offset) {
+		while ( !builder.eof() && builder.getCurrentOffset()<offset ) {
+			builder.advanceLexer();
+		}
+	}
+
 	@Override
 	public void visitTerminal(TerminalNode node) {
 		int nodeStartIndex = node.getSymbol().getStartIndex();
-		SyntaxError error = tokenToErrorMap.get(nodeStartIndex);
+		advanceTo(nodeStartIndex);
+		SyntaxError error = collapsedDepth==0 ? getErrorAt(nodeStartIndex) : null;
 
 		if (error != null) {
 			PsiBuilder.Marker errorMarker = builder.mark();
@@ -127,12 +358,20 @@ public class ANTLRParseTreeToPSIConverter implements ParseTreeListener {
 	 */
 	@Override
 	public void visitErrorNode(ErrorNode node) {
-		ProgressIndicatorProvider.checkCanceled();
+		cancellation.check();
 
 		Token badToken = node.getSymbol();
 		boolean isConjuredToken = badToken.getTokenIndex()<0;
 		int nodeStartIndex = badToken.getStartIndex();
-		SyntaxError error = tokenToErrorMap.get(nodeStartIndex);
+		advanceTo(nodeStartIndex);
+		if ( collapsedDepth>0 ) {
+			// the lazy rule's content reports its own errors once parsed
+			if ( !isConjuredToken && badToken.getType()!=Token.EOF ) {
+				builder.advanceLexer();
+			}
+			return;
+		}
+		SyntaxError error = getErrorAt(nodeStartIndex);
 
 		if ( error!=null ) {
 			PsiBuilder.Marker errorMarker = builder.mark();
@@ -162,14 +401,76 @@ public class ANTLRParseTreeToPSIConverter implements ParseTreeListener {
 
 	@Override
 	public void enterEveryRule(ParserRuleContext ctx) {
-		ProgressIndicatorProvider.checkCanceled();
-		markers.push(getBuilder().mark());
+		cancellation.check();
+		if ( isRootRule(ctx) ) {
+			return;
+		}
+		if ( collapsedDepth>0 ) {
+			collapsedDepth++;
+			return;
+		}
+		if ( getRuleElementType(ctx.getRuleIndex()) instanceof LazyRuleIElementType ) {
+			collapsedDepth = 1;
+		}
+		if ( isLeftRecursiveReentry(ctx) ) {
+			markers.push(lastDoneMarker.precede());
+		}
+		else {
+			markers.push(getBuilder().mark());
+		}
 	}
 
 	@Override
 	public void exitEveryRule(ParserRuleContext ctx) {
-		ProgressIndicatorProvider.checkCanceled();
+		cancellation.check();
+		if ( isRootRule(ctx) ) {
+			return;
+		}
+		if ( collapsedDepth>1 ) {
+			collapsedDepth--;
+			return;
+		}
 		PsiBuilder.Marker marker = markers.pop();
-		marker.done(getRuleElementTypes().get(ctx.getRuleIndex()));
+		if ( collapsedDepth==1 ) {
+			collapsedDepth = 0;
+			marker.collapse(getRuleElementType(ctx.getRuleIndex()));
+		}
+		else if ( isChainLink(ctx) ) {
+			marker.drop(); // the child's node stands in for ctx
+		}
+		else {
+			marker.done(getRuleElementType(ctx.getRuleIndex()));
+		}
+		lastDoneMarker = marker;
+		lastDoneStart = ctx.getStart();
+	}
+
+	/** A context with a single child that is itself a rule, where the policy
+	 *  says to collapse the rule. Only applies to walked ParseTrees; while
+	 *  streaming, contexts have no children to look at.
+	 */
+	protected boolean isChainLink(ParserRuleContext ctx) {
+		int ruleIndex = ctx.getRuleIndex();
+		return ctx.getChildCount()==1 &&
+			   ctx.getChild(0) instanceof ParserRuleContext &&
+			   chainRulePolicy.shouldCollapse(ruleIndex) &&
+			   !(getRuleElementType(ruleIndex) instanceof SelfContainedRuleElementType);
+	}
+
+	protected boolean isRootRule(ParserRuleContext ctx) {
+		return root instanceof SelfContainedRuleElementType &&
+			   ctx.getParent()==null &&
+			   ((SelfContainedRuleElementType)root).getRuleIndex()==ctx.getRuleIndex();
+	}
+
+	/** While streaming, a left-recursive rule enters a new context that
+	 *  starts at the already-consumed start token of the context that
+	 *  just finished (see {@link Parser#pushNewRecursionContext}).
+	 */
+	protected boolean isLeftRecursiveReentry(ParserRuleContext ctx) {
+		return streamingParser!=null &&
+			   lastDoneMarker!=null &&
+			   ctx.getStart()==lastDoneStart &&
+			   lastDoneStart.getTokenIndex() < streamingParser.getInputStream().index();
 	}
 }
@@ -1,68 +1,364 @@
 package org.antlr.intellij.adaptor.parser;
 
+import com.intellij.concurrency.SensitiveProgressWrapper;
 import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiParser;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PlainTextTokenTypes;
 import com.intellij.psi.tree.IElementType;
-import org.antlr.intellij.adaptor.lexer.PSITokenSource;
-import org.antlr.v4.runtime.CommonTokenStream;
+import com.intellij.psi.tree.TokenSet;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
+import org.antlr.intellij.adaptor.CancellationThrottle;
+import org.antlr.intellij.adaptor.lexer.LazyRuleIElementType;
+import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
+import org.antlr.intellij.adaptor.lexer.PSIRawTokens;
+import org.antlr.intellij.adaptor.lexer.PSITokenStream;
+import org.antlr.intellij.adaptor.lexer.SelfContainedRuleElementType;
+import org.antlr.intellij.adaptor.lexer.TokenIElementType;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.Parser;
-import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import org.jetbrains.annotations.NotNull;
 
-/** An adaptor that makes an ANTLR parser look like a PsiParser. */
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/** An adaptor that makes an ANTLR parser look like a PsiParser.
+ *
+ *  By default the ANTLR parser builds a complete ParseTree which is then
+ *  converted to PSI. Override {@link #isStreamingParse()} to have the
+ *  PSI markers created while the parser runs instead.
+ *
+ *  Override {@link #isTwoStageParse()} to try a fast SLL pass first and
+ *  only rerun the parser in full LL mode with error recovery when that
+ *  pass fails; {@link ANTLRParseStatistics} counts how often it does.
+ *
+ *  Rules registered with a {@link SelfContainedRuleElementType}, e.g. a
+ *  {@link org.antlr.intellij.adaptor.lexer.ReparseableRuleIElementType},
+ *  can be reparsed on their own; see {@link #parseRoot}. The content of
+ *  rules registered with a
+ *  {@link org.antlr.intellij.adaptor.lexer.LazyRuleIElementType} is hidden
+ *  from the parser and only parsed when the IDE expands the collapsed node.
+ *
+ *  Override {@link #getTopLevelSyncTokenTypes()} to parse large files in
+ *  chunks on several threads.
+ *
+ *  Override {@link #getFlatTokensThreshold()} and
+ *  {@link #getLineBlocksThreshold()} to not parse huge files at all:
+ *  above the first the tree is a flat list of tokens, and above the
+ *  second a list of line blocks; see {@link ParseMode} and
+ *  {@link #getParseMode(ASTNode)}. By default every file is parsed.
+ */
 public abstract class ANTLRParserAdaptor implements PsiParser {
+	private static final Key<ParseMode> PARSE_MODE = Key.create("ANTLR parse mode");
+
 	protected final Language language;
+	/** The parser used for every parse, or null if parsers are borrowed
+	 *  from the language's pool.
+	 */
 	protected final Parser parser;
 
 	/** Create a jetbrains adaptor for an ANTLR parser object. When
 	 *  the IDE requests a {@link #parse(IElementType, PsiBuilder)},
-	 *  the token stream will be set on the parser.
+	 *  the token stream will be set on the parser. If an
+	 *  {@link ANTLRRecognizerRuntime} is defined for the language, the
+	 *  parser is bound to its shared DFA cache.
 	 */
 	public ANTLRParserAdaptor(Language language, Parser parser) {
 		this.language = language;
 		this.parser = parser;
+		ANTLRRecognizerRuntime runtime = ANTLRRecognizerRuntime.getInstance(language);
+		if ( runtime!=null ) {
+			runtime.bind(parser);
+		}
+	}
+
+	/** Create a jetbrains adaptor that borrows a parser from the
+	 *  {@link ANTLRRecognizerRuntime#getParserPool() pool} of the language's
+	 *  runtime for each parse and returns it afterwards. Unlike an adaptor
+	 *  holding a single parser, one instance can parse on several threads
+	 *  at once.
+	 */
+	public ANTLRParserAdaptor(Language language) {
+		if ( ANTLRRecognizerRuntime.getInstance(language)==null ) {
+			throw new IllegalStateException("no ANTLRRecognizerRuntime defined for "+language);
+		}
+		this.language = language;
+		this.parser = null;
 	}
 
 	public Language getLanguage() {
 		return language;
 	}
 
+	/** Return the mode tree was parsed in, or null if it wasn't built by
+	 *  an ANTLRParserAdaptor; tree is usually a file's node.
+	 */
+	public static ParseMode getParseMode(ASTNode tree) {
+		return tree.getUserData(PARSE_MODE);
+	}
+
 	@NotNull
 	@Override
 	public ASTNode parse(IElementType root, PsiBuilder builder) {
 		ProgressIndicatorProvider.checkCanceled();
 
-		TokenSource source = new PSITokenSource(builder);
-		TokenStream tokens = new CommonTokenStream(source);
+		ParseMode mode = chooseParseMode(builder);
+		parseModeChosen(mode, builder);
+		ASTNode tree = mode==ParseMode.FULL ? parseFully(root, builder) : parseDegraded(mode, root, builder);
+		tree.putUserData(PARSE_MODE, mode);
+		return tree;
+	}
+
+	private ASTNode parseFully(IElementType root, PsiBuilder builder) {
+		ANTLRRecognizerRuntime runtime = ANTLRRecognizerRuntime.getInstance(language);
+		if ( runtime==null ) {
+			return parseAndConvert(parser, root, builder);
+		}
+
+		// begin first so the caches can't be reset between binding and parsing;
+		// they may have been reset since the last parse
+		runtime.beginParse();
+		Parser p = parser!=null ? runtime.bind(parser) : runtime.borrowParser();
+		try {
+			return parseAndConvert(p, root, builder);
+		}
+		finally {
+			if ( parser==null ) {
+				runtime.releaseParser(p);
+			}
+			runtime.endParse();
+		}
+	}
+
+	/** Pick the parse mode from the size of the input against
+	 *  {@link #getFlatTokensThreshold()} and {@link #getLineBlocksThreshold()}.
+	 *  Tokens are only counted if the char count leaves it open.
+	 */
+	protected ParseMode chooseParseMode(PsiBuilder builder) {
+		int chars = builder.getOriginalText().length();
+		SizeThreshold lineBlocks = getLineBlocksThreshold();
+		SizeThreshold flatTokens = getFlatTokensThreshold();
+		int tokens = -1;
+		if ( lineBlocks.needsTokenCount(chars) || flatTokens.needsTokenCount(chars) ) {
+			tokens = countTokens(builder);
+		}
+		if ( lineBlocks.isExceeded(chars, tokens) ) return ParseMode.LINE_BLOCKS;
+		if ( flatTokens.isExceeded(chars, tokens) ) return ParseMode.FLAT_TOKENS;
+		return ParseMode.FULL;
+	}
+
+	private static int countTokens(PsiBuilder builder) {
+		CancellationThrottle cancellation = new CancellationThrottle();
+		int n = 0;
+		while ( builder.rawLookup(n)!=null ) {
+			cancellation.check();
+			n++;
+		}
+		return n;
+	}
+
+	/** Called before each parse with the mode it will run in, e.g. to
+	 *  tell the user that a file is too large for code insight.
+	 */
+	protected void parseModeChosen(ParseMode mode, PsiBuilder builder) {
+	}
+
+	/** Above this size no parser runs and the file's tree is just a flat
+	 *  list of tokens. The default is {@link SizeThreshold#NEVER}; something
+	 *  like 10M chars or 2M tokens keeps huge files from exhausting the heap.
+	 */
+	protected SizeThreshold getFlatTokensThreshold() {
+		return SizeThreshold.NEVER;
+	}
+
+	/** Above this size even the tokens are lumped together into one leaf
+	 *  per {@link #getLinesPerBlock()} lines. The default is
+	 *  {@link SizeThreshold#NEVER}; e.g. 50M chars or 10M tokens.
+	 */
+	protected SizeThreshold getLineBlocksThreshold() {
+		return SizeThreshold.NEVER;
+	}
+
+	protected int getLinesPerBlock() {
+		return 1000;
+	}
+
+	/** The element type of the leaves of {@link ParseMode#LINE_BLOCKS} trees. */
+	protected IElementType getLineBlockElementType() {
+		return PlainTextTokenTypes.PLAIN_TEXT;
+	}
+
+	/** Build a tree without running the parser: the root holds the tokens
+	 *  or, for {@link ParseMode#LINE_BLOCKS}, blocks of lines collapsed
+	 *  into single leaves.
+	 */
+	protected ASTNode parseDegraded(ParseMode mode, IElementType root, PsiBuilder builder) {
+		PsiBuilder.Marker rootMarker = builder.mark();
+		if ( mode==ParseMode.LINE_BLOCKS ) {
+			collapseLineBlocks(builder);
+		}
+		advanceToEof(builder);
+		rootMarker.done(root);
+		return builder.getTreeBuilt();
+	}
+
+	private void collapseLineBlocks(PsiBuilder builder) {
+		CharSequence text = builder.getOriginalText();
+		IElementType blockType = getLineBlockElementType();
+		int linesPerBlock = Math.max(1, getLinesPerBlock());
+		CancellationThrottle cancellation = new CancellationThrottle();
+		while ( !builder.eof() ) {
+			int end = builder.getCurrentOffset();
+			for (int n = 0; n < linesPerBlock && end < text.length(); n++) {
+				int eol = StringUtil.indexOf(text, '\n', end);
+				end = eol<0 ? text.length() : eol + 1;
+			}
+			PsiBuilder.Marker block = builder.mark();
+			while ( !builder.eof() && builder.getCurrentOffset()<end ) {
+				cancellation.check();
+				builder.advanceLexer();
+			}
+			block.collapse(blockType);
+		}
+	}
+
+	protected ASTNode parseAndConvert(Parser parser, IElementType root, PsiBuilder builder) {
+		if ( getTopLevelSyncTokenTypes()!=null ) {
+			ASTNode tree = parseChunked(parser, root, builder);
+			if ( tree!=null ) {
+				return tree;
+			}
+		}
+
+		if ( isTwoStageParse() ) {
+			TokenStream tokens = createTokenStream(builder);
+			ASTNode tree;
+			try {
+				tree = parseAndConvertSLL(parser, root, builder, tokens);
+			}
+			finally {
+				recordCancellation(tokens);
+			}
+			if ( tree!=null ) {
+				return tree;
+			}
+		}
+
+		// the first stage left its stream wherever it bailed out; start over
+		TokenStream tokens = createTokenStream(builder);
+		try {
+			parser.setTokenStream(tokens);
+			parser.setErrorHandler(createErrorStrategy()); // tweaks missing tokens
+			parser.removeErrorListeners();
+			parser.addErrorListener(new SyntaxErrorListener()); // trap errors
+
+			if ( isStreamingParse() ) {
+				return parseStreaming(parser, root, builder, tokens);
+			}
+
+			// the token stream doesn't advance the builder
+			ParseTree parseTree;
+			try {
+				parseTree = parseRoot(parser, root);
+			}
+			catch (RecoveryBudgetExceededException e) {
+				parseTree = e.getRootContext(); // convert what we've got
+				if ( parseTree==null ) throw e;
+			}
+			return convertParseTree(parser, root, builder, parseTree);
+		}
+		finally {
+			recordCancellation(tokens);
+		}
+	}
+
+	/** Add the calls and checks of the throttle of a {@link PSITokenStream}
+	 *  to the language's {@link ANTLRParseStatistics}.
+	 */
+	private void recordCancellation(TokenStream tokens) {
+		if ( tokens instanceof PSITokenStream ) {
+			recordCancellation(((PSITokenStream)tokens).getCancellationThrottle());
+		}
+	}
+
+	private void recordCancellation(CancellationThrottle throttle) {
+		ANTLRParseStatistics.getInstance(language).recordCancellation(throttle);
+	}
+
+	/** The first stage of a two-stage parse: parse in SLL mode, bailing
+	 *  out at the first syntax error. SLL prediction is much cheaper than
+	 *  LL and, if it succeeds, yields the same tree.
+	 *
+	 *  @return the PSI tree, or null if the parser bailed out, in which
+	 *  case the builder is left untouched.
+	 */
+	protected ASTNode parseAndConvertSLL(Parser parser, IElementType root, PsiBuilder builder, TokenStream tokens) {
+		ANTLRParseStatistics statistics = ANTLRParseStatistics.getInstance(language);
+		statistics.recordTwoStageParse();
+
+		ParserATNSimulator interpreter = parser.getInterpreter();
+		PredictionMode mode = interpreter.getPredictionMode();
 		parser.setTokenStream(tokens);
-		parser.setErrorHandler(new ErrorStrategyAdaptor()); // tweaks missing tokens
+		parser.setErrorHandler(new BailErrorStrategy());
 		parser.removeErrorListeners();
-		parser.addErrorListener(new SyntaxErrorListener()); // trap errors
-		ParseTree parseTree = null;
-		PsiBuilder.Marker rollbackMarker = builder.mark();
+		interpreter.setPredictionMode(PredictionMode.SLL);
 		try {
-			parseTree = parse(parser, root);
+			if ( isStreamingParse() ) {
+				return parseStreaming(parser, root, builder, tokens);
+			}
+			ParseTree parseTree = parseRoot(parser, root);
+			return convertParseTree(parser, root, builder, parseTree);
+		}
+		catch (ParseCancellationException e) {
+			statistics.recordFallback();
+			return null;
 		}
 		finally {
-			rollbackMarker.rollbackTo();
+			interpreter.setPredictionMode(mode);
 		}
+	}
 
+	protected ASTNode convertParseTree(Parser parser, IElementType root, PsiBuilder builder, ParseTree parseTree) {
 		// Now convert ANTLR parser tree to PSI tree by mimicking subtree
 		// enter/exit with mark/done calls. I *think* this creates their parse
 		// tree (AST as they call it) when you call {@link PsiBuilder#getTreeBuilt}
 		ANTLRParseTreeToPSIConverter listener = createListener(parser, root, builder);
+		listener.setRoot(root);
+		listener.setChainRuleCollapsePolicy(getChainRuleCollapsePolicy());
 		PsiBuilder.Marker rootMarker = builder.mark();
-		ParseTreeWalker.DEFAULT.walk(listener, parseTree);
-		while (!builder.eof()) {
-			ProgressIndicatorProvider.checkCanceled();
-			builder.advanceLexer();
-		}
+		listener.walk(parseTree);
+		recordCancellation(listener.cancellation);
+		markUnparsedInput(parser, builder);
+		advanceToEof(builder);
 		// NOTE: parse tree returned from parse will be the
 		// usual ANTLR tree ANTLRParseTreeToPSIConverter will
 		// convert that to the analogous jetbrains AST nodes
@@ -82,8 +378,488 @@ public abstract class ANTLRParserAdaptor implements PsiParser {
 		return builder.getTreeBuilt(); // calls the ASTFactory.createComposite() etc...
 	}
 
+	/** Build the PSI tree while the ANTLR parser runs. The listener is
+	 *  attached as a parse listener and the parser does not build a
+	 *  ParseTree, so the result of {@link #parse(Parser, IElementType)}
+	 *  is ignored. The listener advances the builder as tokens are matched;
+	 *  the token stream reads ahead without depending on its position.
+	 */
+	protected ASTNode parseStreaming(Parser parser, IElementType root, PsiBuilder builder, TokenStream tokens) {
+		ANTLRParseTreeToPSIConverter listener = createListener(parser, root, builder);
+		listener.setRoot(root);
+		listener.setChainRuleCollapsePolicy(getChainRuleCollapsePolicy());
+		PsiBuilder.Marker rootMarker = builder.mark();
+		listener.startStreaming(parser);
+		try {
+			parseRoot(parser, root);
+		}
+		catch (RecoveryBudgetExceededException e) {
+			// the rules' markers were closed as the parser unwound; keep them
+		}
+		catch (ParseCancellationException e) {
+			// the parser bailed out; leave the builder as we found it
+			rootMarker.rollbackTo();
+			throw e;
+		}
+		finally {
+			listener.stopStreaming(parser);
+			recordCancellation(listener.cancellation);
+		}
+		markUnparsedInput(parser, builder);
+		advanceToEof(builder);
+		rootMarker.done(root);
+		return builder.getTreeBuilt();
+	}
+
+	/** Split a large file before each top-level sync token that's not
+	 *  nested in delimiters, parse the chunks in parallel on
+	 *  {@link #getChunkPool()}, each with its own parser borrowed from the
+	 *  language's {@link ANTLRRecognizerRuntime}, then convert the chunks'
+	 *  trees in order under a single node for the start rule. The chunks
+	 *  read a {@link PSIRawTokens} copy of the builder's tokens taken on
+	 *  the calling thread, never the builder itself.
+	 *
+	 *  @return the PSI tree, or null if the file is too small to split or
+	 *  there is no runtime; the builder is untouched then.
+	 */
+	protected ASTNode parseChunked(Parser parser, IElementType root, PsiBuilder builder) {
+		ANTLRRecognizerRuntime runtime = ANTLRRecognizerRuntime.getInstance(language);
+		if ( runtime==null ) return null;
+		TokenSet hidden = getHiddenTokens();
+		PSIRawTokens rawTokens = PSIRawTokens.copy(builder);
+		int[] bounds = findChunkBounds(rawTokens, hidden);
+		int nchunks = bounds.length - 1;
+		if ( nchunks<2 ) return null;
+
+		ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+		// canceled with indicator, or on its own to abandon the chunks
+		ProgressIndicator chunkIndicator =
+			indicator!=null ? new SensitiveProgressWrapper(indicator) : new EmptyProgressIndicator();
+		List<ForkJoinTask<ParseTree>> tasks = new ArrayList<>(nchunks);
+		List<SyntaxErrorListener> errors = new ArrayList<>(nchunks);
+		for (int c = 0; c < nchunks; c++) {
+			PSITokenStream chunkTokens = new PSITokenStream(builder, hidden, rawTokens, bounds[c], bounds[c + 1]);
+			SyntaxErrorListener chunkErrors = new SyntaxErrorListener();
+			errors.add(chunkErrors);
+			tasks.add(getChunkPool().submit(() -> {
+				ParseTree[] tree = new ParseTree[1];
+				ProgressManager.getInstance().executeProcessUnderProgress(() -> {
+					ProgressManager.checkCanceled(); // abandoned before it started
+					Parser chunkParser = runtime.borrowParser();
+					try {
+						chunkParser.setTokenStream(chunkTokens);
+						chunkParser.setErrorHandler(createErrorStrategy());
+						chunkParser.removeErrorListeners();
+						chunkParser.addErrorListener(chunkErrors);
+						tree[0] = parseRoot(chunkParser, root);
+					}
+					catch (RecoveryBudgetExceededException e) {
+						tree[0] = null; // reparse the file in one go, which gives up gracefully
+					}
+					finally {
+						runtime.releaseParser(chunkParser);
+						recordCancellation(chunkTokens);
+					}
+				}, chunkIndicator);
+				return tree[0];
+			}));
+		}
+
+		ParserRuleContext[] trees = new ParserRuleContext[nchunks];
+		boolean parsed = false;
+		try {
+			for (int c = 0; c < nchunks; c++) {
+				ParseTree tree = tasks.get(c).join();
+				if ( !(tree instanceof ParserRuleContext) ) return null;
+				trees[c] = (ParserRuleContext)tree;
+				if ( trees[c].getRuleIndex()!=trees[0].getRuleIndex() ) return null;
+			}
+			parsed = true;
+		}
+		finally {
+			if ( !parsed ) {
+				// the file is parsed again in one go; stop the other
+				// chunks' parsers rather than let them run on
+				chunkIndicator.cancel();
+				for (ForkJoinTask<ParseTree> task : tasks) {
+					task.quietlyJoin();
+				}
+			}
+		}
+
+		parser.removeErrorListeners(); // the listener must not pick up stale errors
+		ANTLRParseTreeToPSIConverter listener = createListener(parser, root, builder);
+		listener.setRoot(root);
+		listener.setChainRuleCollapsePolicy(getChainRuleCollapsePolicy());
+		for (SyntaxErrorListener chunkErrors : errors) {
+			SyntaxErrorIndex chunkIndex = chunkErrors.getErrorIndex();
+			for (int i = 0; i < chunkIndex.size(); i++) {
+				listener.recordError(chunkIndex.get(i));
+			}
+		}
+		PsiBuilder.Marker rootMarker = builder.mark();
+		listener.walk(mergeChunks(trees));
+		recordCancellation(listener.cancellation);
+		advanceToEof(builder);
+		rootMarker.done(root);
+		return builder.getTreeBuilt();
+	}
+
+	/** Return a context of the chunks' start rule spanning all chunks,
+	 *  holding their children in order, minus the EOF of every chunk but
+	 *  the last.
+	 */
+	private static ParserRuleContext mergeChunks(ParserRuleContext[] trees) {
+		int ruleIndex = trees[0].getRuleIndex();
+		ParserRuleContext merged = new ParserRuleContext() {
+			@Override
+			public int getRuleIndex() {
+				return ruleIndex;
+			}
+		};
+		merged.start = trees[0].getStart();
+		merged.stop = trees[trees.length - 1].getStop();
+		for (int c = 0; c < trees.length; c++) {
+			for (int i = 0; i < trees[c].getChildCount(); i++) {
+				ParseTree child = trees[c].getChild(i);
+				boolean chunkEof = child instanceof TerminalNode && !(child instanceof ErrorNode) &&
+								   ((TerminalNode)child).getSymbol().getType()==Token.EOF;
+				if ( chunkEof && c<trees.length - 1 ) continue; // not the real EOF
+				merged.addAnyChild(child);
+				child.setParent(merged);
+			}
+		}
+		return merged;
+	}
+
+	/** Return the raw token indexes at which chunks start plus the raw
+	 *  index of the end of input.
+	 */
+	private int[] findChunkBounds(PSIRawTokens rawTokens, TokenSet hidden) {
+		IntervalSet syncTypes = new IntervalSet(getTopLevelSyncTokenTypes());
+		IntervalSet openTypes = new IntervalSet(getNestingOpenTokenTypes());
+		IntervalSet closeTypes = new IntervalSet(getNestingCloseTokenTypes());
+		int minChunkTokens = getMinChunkTokens();
+
+		int[] bounds = new int[8];
+		int n = 0;
+		bounds[n++] = rawTokens.getStartRawIndex();
+		int depth = 0;
+		int chunkTokens = 0;
+		for (int raw = rawTokens.getStartRawIndex(); ; raw++) {
+			IElementType type = rawTokens.getTokenType(raw);
+			if ( type==null ) {
+				if ( n==bounds.length ) bounds = Arrays.copyOf(bounds, n + 1);
+				bounds[n++] = raw;
+				return Arrays.copyOf(bounds, n);
+			}
+			if ( hidden.contains(type) || !(type instanceof TokenIElementType) ) continue;
+			int t = ((TokenIElementType)type).getANTLRTokenType();
+			if ( depth==0 && chunkTokens>=minChunkTokens && syncTypes.contains(t) ) {
+				if ( n==bounds.length ) bounds = Arrays.copyOf(bounds, n * 2);
+				bounds[n++] = raw;
+				chunkTokens = 0;
+			}
+			if ( openTypes.contains(t) ) {
+				depth++;
+			}
+			else if ( closeTypes.contains(t) && depth>0 ) {
+				depth--;
+			}
+			chunkTokens++;
+		}
+	}
+
+	/** Return the ANTLR token types that start a top-level declaration to
+	 *  parse large files in parallel chunks split before such tokens; see
+	 *  {@link #parseChunked}. The start rule invoked by
+	 *  {@link #parse(Parser, IElementType)} is run on each chunk, so it must
+	 *  accept any sequence of top-level declarations followed by EOF. The
+	 *  default, null, parses files in one go. Chunked parsing is neither
+	 *  streaming nor two-stage.
+	 */
+	protected int[] getTopLevelSyncTokenTypes() {
+		return null;
+	}
+
+	/** ANTLR token types such as '{' within which sync tokens are nested
+	 *  and don't start a chunk.
+	 */
+	protected int[] getNestingOpenTokenTypes() {
+		return new int[0];
+	}
+
+	/** ANTLR token types such as '}' closing {@link #getNestingOpenTokenTypes()}. */
+	protected int[] getNestingCloseTokenTypes() {
+		return new int[0];
+	}
+
+	/** The minimum number of tokens in a chunk; smaller files aren't split. */
+	protected int getMinChunkTokens() {
+		return 20000;
+	}
+
+	/** The pool the chunks of {@link #parseChunked} are parsed on. The
+	 *  default is shared by all adaptors and keeps chunk parsing out of
+	 *  the common pool, where it would compete with, and could be starved
+	 *  by, unrelated work; it has a worker per processor but one, so the
+	 *  IDE stays responsive while a huge file is parsed.
+	 */
+	protected ForkJoinPool getChunkPool() {
+		return ChunkPool.INSTANCE;
+	}
+
+	private static final class ChunkPool {
+		static final ForkJoinPool INSTANCE = new ForkJoinPool(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+			pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("ANTLR chunk parser " + thread.getPoolIndex());
+				return thread;
+			},
+			null, false);
+	}
+
+	/** Create the token stream the parser reads from. The default reads the
+	 *  builder's tokens in place, hiding the whitespace and comment tokens
+	 *  of the language's ParserDefinition just as the builder does. The
+	 *  stream must not advance the builder.
+	 */
+	protected TokenStream createTokenStream(PsiBuilder builder) {
+		return new PSITokenStream(builder, getHiddenTokens());
+	}
+
+	/** The whitespace and comment tokens of the ParserDefinition plus
+	 *  the token types on hidden channels, if known.
+	 *
+	 *  This only hides off-channel tokens from the parser. The PsiBuilder
+	 *  skips just the ParserDefinition's whitespace and comment tokens, so
+	 *  it would put any other off-channel token into whatever marker is
+	 *  open where it appears. Return every off-channel type from
+	 *  {@link ParserDefinition#getWhitespaceTokens()} or
+	 *  {@link ParserDefinition#getCommentTokens()} too, e.g. built with
+	 *  {@link PSIElementTypeFactory#createHiddenTokenSet}.
+	 */
+	protected TokenSet getHiddenTokens() {
+		TokenSet offChannel = PSIElementTypeFactory.createHiddenTokenSet(language);
+		ParserDefinition definition = LanguageParserDefinitions.INSTANCE.forLanguage(language);
+		if ( definition==null ) return offChannel;
+		return TokenSet.orSet(definition.getWhitespaceTokens(), definition.getCommentTokens(), offChannel);
+	}
+
+	/** If the parser gave up on error recovery, make the rest of the
+	 *  input a single error element rather than leaving it unparsed.
+	 */
+	protected void markUnparsedInput(Parser parser, PsiBuilder builder) {
+		if ( !(parser.getErrorHandler() instanceof ErrorStrategyAdaptor) ) return;
+		if ( !((ErrorStrategyAdaptor)parser.getErrorHandler()).isBudgetExceeded() ) return;
+		ANTLRParseStatistics.getInstance(language).recordRecoveryBudgetExceeded();
+		if ( builder.eof() ) return;
+		PsiBuilder.Marker unparsed = builder.mark();
+		advanceToEof(builder);
+		unparsed.error("Too many syntax errors; the rest of the file is not parsed");
+	}
+
+	/** Create the error strategy for a full parse; see
+	 *  {@link #getMaxSyntaxErrors()} and {@link #getMaxRecoveryWork()}.
+	 *  It shares the language's {@link ExpectedTokensCache}.
+	 */
+	protected ErrorStrategyAdaptor createErrorStrategy() {
+		return new ErrorStrategyAdaptor(getMaxSyntaxErrors(), getMaxRecoveryWork(),
+										ExpectedTokensCache.getInstance(language));
+	}
+
+	/** The number of syntax errors after which the parser gives up and
+	 *  the rest of the input becomes a single error element.
+	 */
+	protected int getMaxSyntaxErrors() {
+		return 1000;
+	}
+
+	/** The amount of error recovery after which the parser gives up,
+	 *  counted as one per recovery attempt plus one per token skipped.
+	 */
+	protected int getMaxRecoveryWork() {
+		return 100_000;
+	}
+
+	protected void advanceToEof(PsiBuilder builder) {
+		CancellationThrottle cancellation = new CancellationThrottle();
+		while (!builder.eof()) {
+			cancellation.check();
+			builder.advanceLexer();
+		}
+		recordCancellation(cancellation);
+	}
+
+	/** Return true to create PSI markers while the ANTLR parser runs
+	 *  rather than building a ParseTree and walking it afterwards.
+	 *  This avoids a second pass over the tree and keeps finished rule
+	 *  contexts from being retained until the parse ends; per-token
+	 *  terminal and error nodes are still allocated by the ANTLR runtime
+	 *  for the listener. {@link #createListener} is then called before parsing, so
+	 *  the listener only sees syntax errors as they are reported.
+	 */
+	protected boolean isStreamingParse() {
+		return false;
+	}
+
+	/** Return true to parse in two stages: SLL prediction with a
+	 *  {@link BailErrorStrategy} first, then, only if that fails, full LL
+	 *  prediction with {@link ErrorStrategyAdaptor} and
+	 *  {@link SyntaxErrorListener}. Worth it when most files being parsed
+	 *  are free of syntax errors; {@link ANTLRParseStatistics#getFallbackRate()}
+	 *  tells how often the second stage is needed.
+	 */
+	protected boolean isTwoStageParse() {
+		return false;
+	}
+
+	/** Return which single-child rule contexts, e.g. the links of an
+	 *  expression precedence chain, become no PSI node of their own. The
+	 *  default, {@link ChainRuleCollapsePolicy#NONE}, keeps one node per
+	 *  context. Has no effect on streaming parses.
+	 */
+	protected ChainRuleCollapsePolicy getChainRuleCollapsePolicy() {
+		return ChainRuleCollapsePolicy.NONE;
+	}
+
 	protected abstract ParseTree parse(Parser parser, IElementType root);
 
+	/** Parse root: a {@link SelfContainedRuleElementType}, as handed to us
+	 *  when the IDE reparses a single block, is parsed by invoking its
+	 *  rule's method on the generated parser; anything else goes through
+	 *  {@link #parse(Parser, IElementType)}. Either way the content of
+	 *  nested lazy rules is skipped as the parser enters them.
+	 */
+	protected ParseTree parseRoot(Parser parser, IElementType root) {
+		LazyRuleSkipper skipper = createLazyRuleSkipper(parser, root);
+		if ( skipper!=null ) {
+			parser.addParseListener(skipper);
+		}
+		try {
+			if ( !(root instanceof SelfContainedRuleElementType) ) {
+				return parse(parser, root);
+			}
+			return invokeRule(parser, ((SelfContainedRuleElementType)root).getRuleIndex());
+		}
+		finally {
+			if ( skipper!=null ) {
+				parser.removeParseListener(skipper);
+			}
+		}
+	}
+
+	/** Parse the self-contained rule ruleIndex with the invoker given to
+	 *  {@link PSIElementTypeFactory#defineRuleIElementType(Language, IElementType, Function)},
+	 *  or else by calling the rule's method.
+	 */
+	private ParseTree invokeRule(Parser parser, int ruleIndex) {
+		Function<? super Parser, ? extends ParseTree> invoker = PSIElementTypeFactory.getRuleInvoker(language, ruleIndex);
+		if ( invoker!=null ) {
+			return invoker.apply(parser);
+		}
+		Method rule = getRuleMethod(parser, ruleIndex);
+		try {
+			return (ParseTree)rule.invoke(parser);
+		}
+		catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if ( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException(cause);
+		}
+		catch (IllegalAccessException e) {
+			throw new IllegalStateException("can't invoke rule "+rule.getName()+" of "+parser.getClass().getName(), e);
+		}
+	}
+
+	/** The method of each rule by parser class and rule index, looked up
+	 *  on first use rather than on every reparse.
+	 */
+	private static final ClassValue<Map<Integer, Method>> RULE_METHODS = new ClassValue<Map<Integer, Method>>() {
+		@Override
+		protected Map<Integer, Method> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	private static Method getRuleMethod(Parser parser, int ruleIndex) {
+		Map<Integer, Method> methods = RULE_METHODS.get(parser.getClass());
+		Method rule = methods.get(ruleIndex);
+		if ( rule!=null ) return rule;
+		String[] ruleNames = parser.getRuleNames();
+		if ( ruleIndex<0 || ruleIndex>=ruleNames.length ) {
+			throw new IllegalStateException("no rule "+ruleIndex+" in "+parser.getClass().getName());
+		}
+		String ruleName = ruleNames[ruleIndex];
+		try {
+			rule = parser.getClass().getMethod(ruleName);
+		}
+		catch (NoSuchMethodException e) {
+			throw new IllegalStateException("can't parse rule "+ruleName+": "+parser.getClass().getName()+
+											" has no public method "+ruleName+"(); give its element type a rule invoker", e);
+		}
+		if ( !ParseTree.class.isAssignableFrom(rule.getReturnType()) ) {
+			throw new IllegalStateException("can't parse rule "+ruleName+": "+rule+" doesn't return a ParseTree");
+		}
+		methods.put(ruleIndex, rule);
+		return rule;
+	}
+
+	/** Return a listener hiding the content of lazy rules from the parser,
+	 *  or null if the language has none or the tokens can't be skipped.
+	 */
+	private LazyRuleSkipper createLazyRuleSkipper(Parser parser, IElementType root) {
+		if ( !(parser.getInputStream() instanceof PSITokenStream) ) return null;
+		String[] ruleNames = parser.getRuleNames();
+		LazyRuleIElementType[] lazyRules = null;
+		for (int i = 0; i < ruleNames.length; i++) {
+			IElementType type = PSIElementTypeFactory.getRuleIElementType(language, i);
+			if ( type instanceof LazyRuleIElementType ) {
+				if ( lazyRules==null ) lazyRules = new LazyRuleIElementType[ruleNames.length];
+				lazyRules[i] = (LazyRuleIElementType)type;
+			}
+		}
+		if ( lazyRules==null ) return null;
+		return new LazyRuleSkipper((PSITokenStream)parser.getInputStream(), lazyRules, root);
+	}
+
+	/** Skips the content of each lazy rule as the parser enters it, except
+	 *  for the outermost rule when that rule is itself being parsed.
+	 */
+	private static class LazyRuleSkipper implements ParseTreeListener {
+		private final PSITokenStream tokens;
+		private final LazyRuleIElementType[] lazyRules;
+		private final IElementType root;
+
+		LazyRuleSkipper(PSITokenStream tokens, LazyRuleIElementType[] lazyRules, IElementType root) {
+			this.tokens = tokens;
+			this.lazyRules = lazyRules;
+			this.root = root;
+		}
+
+		@Override
+		public void enterEveryRule(ParserRuleContext ctx) {
+			LazyRuleIElementType type = lazyRules[ctx.getRuleIndex()];
+			if ( type!=null && !(type==root && ctx.getParent()==null) ) {
+				tokens.skipBalanced(type.getOpenTokenType(), type.getCloseTokenType());
+			}
+		}
+
+		@Override
+		public void exitEveryRule(ParserRuleContext ctx) {
+		}
+
+		@Override
+		public void visitTerminal(TerminalNode node) {
+		}
+
+		@Override
+		public void visitErrorNode(ErrorNode node) {
+		}
+	}
+
 	protected ANTLRParseTreeToPSIConverter createListener(Parser parser, IElementType root, PsiBuilder builder) {
 		return new ANTLRParseTreeToPSIConverter(language, parser, builder);
 	}
@@ -0,0 +1,55 @@
+package org.antlr.intellij.adaptor.parser;
+
+import java.util.BitSet;
+
+/** Decides which rules get no PSI node of their own when their context
+ *  is a mere link in a chain, i.e. has exactly one child and that child
+ *  is another rule. Expression grammars such as
+ *  {@code expr : orExpr ; orExpr : andExpr ('||' andExpr)* ; ...} produce
+ *  such chains for almost every operand; collapsing them leaves just the
+ *  innermost node, e.g. {@code primary}, where the parse tree had one
+ *  node per precedence level.
+ *
+ *  Collapsing is opt-in per rule with {@link #of}, or for all rules with
+ *  {@link #all}, which takes the rules whose identity must be kept, e.g.
+ *  because a PSI element class or reference contributor depends on it.
+ *  Rules registered with a
+ *  {@link org.antlr.intellij.adaptor.lexer.SelfContainedRuleElementType}
+ *  are never collapsed. Return a policy from
+ *  {@link ANTLRParserAdaptor#getChainRuleCollapsePolicy()}.
+ */
+public final class ChainRuleCollapsePolicy {
+	/** Collapse nothing; every rule context becomes a PSI node. */
+	public static final ChainRuleCollapsePolicy NONE = new ChainRuleCollapsePolicy(new BitSet(), false);
+
+	private final BitSet ruleIndexes;
+	/** If true, ruleIndexes are the rules never collapsed; otherwise the only rules collapsed. */
+	private final boolean allExcept;
+
+	private ChainRuleCollapsePolicy(BitSet ruleIndexes, boolean allExcept) {
+		this.ruleIndexes = ruleIndexes;
+		this.allExcept = allExcept;
+	}
+
+	/** Collapse chain links of just these rules. */
+	public static ChainRuleCollapsePolicy of(int... ruleIndexes) {
+		return new ChainRuleCollapsePolicy(toBitSet(ruleIndexes), false);
+	}
+
+	/** Collapse chain links of every rule but these. */
+	public static ChainRuleCollapsePolicy all(int... preservedRuleIndexes) {
+		return new ChainRuleCollapsePolicy(toBitSet(preservedRuleIndexes), true);
+	}
+
+	public boolean shouldCollapse(int ruleIndex) {
+		return ruleIndexes.get(ruleIndex)!=allExcept;
+	}
+
+	private static BitSet toBitSet(int[] ruleIndexes) {
+		BitSet set = new BitSet();
+		for (int ruleIndex : ruleIndexes) {
+			set.set(ruleIndex);
+		}
+		return set;
+	}
+}
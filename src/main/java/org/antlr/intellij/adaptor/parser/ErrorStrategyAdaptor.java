@@ -2,25 +2,204 @@ package org.antlr.intellij.adaptor.parser;
 
 import org.antlr.v4.runtime.CommonToken;
 import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.InputMismatchException;
 import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.RuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.IntervalSet;
 import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
 
 /** Adapt ANTLR's DefaultErrorStrategy so that we add error nodes
  *  for EOF if reached at start of resync's consumeUntil().
  *  Also set start/stop of missing token to always be the current token,
  *  even if that's EOF.
+ *
+ *  When the parser is not building a parse tree (streaming PSI
+ *  construction), these error nodes are handed to the parse listeners
+ *  instead, as are the conjured tokens that {@link Parser#match} would
+ *  otherwise only add to the tree.
+ *
+ *  Recovery can be given a budget: a maximum number of reported errors
+ *  and a maximum amount of recovery work, counted as one per recovery
+ *  attempt plus one per token skipped to resync. Garbage input such as a
+ *  binary file otherwise goes through recovery cycles for almost every
+ *  token. Once either limit is passed the parser is stopped with a
+ *  {@link RecoveryBudgetExceededException}, which keeps the partial tree.
+ *
+ *  Given an {@link ExpectedTokensCache}, the expected-token and recovery
+ *  sets needed to report and recover from each error are looked up there
+ *  rather than computed from the ATN every time.
  */
 public class ErrorStrategyAdaptor extends DefaultErrorStrategy {
+	private final int maxErrors;
+	private final int maxRecoveryWork;
+	private int errors;
+	private int recoveryWork;
+	private boolean budgetExceeded;
+	private final ExpectedTokensCache expectedTokensCache;
+	/** The kind of the error being reported without an exception, if any. */
+	private SyntaxError.Kind reportingKind;
+
+	/** Recover without limit. */
+	public ErrorStrategyAdaptor() {
+		this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	public ErrorStrategyAdaptor(int maxErrors, int maxRecoveryWork) {
+		this(maxErrors, maxRecoveryWork, null);
+	}
+
+	/** @param expectedTokensCache the language's cache, or null to compute sets every time */
+	public ErrorStrategyAdaptor(int maxErrors, int maxRecoveryWork, ExpectedTokensCache expectedTokensCache) {
+		this.maxErrors = maxErrors;
+		this.maxRecoveryWork = maxRecoveryWork;
+		this.expectedTokensCache = expectedTokensCache;
+	}
+
+	@Override
+	public void reset(Parser recognizer) {
+		super.reset(recognizer);
+		errors = 0;
+		recoveryWork = 0;
+		budgetExceeded = false;
+	}
+
+	/** True if the last parse was stopped for exceeding the budget. */
+	public boolean isBudgetExceeded() {
+		return budgetExceeded;
+	}
+
+	public int getErrorCount() {
+		return errors;
+	}
+
+	public int getRecoveryWork() {
+		return recoveryWork;
+	}
+
+	/** Called just before each error is reported. */
+	@Override
+	protected void beginErrorCondition(Parser recognizer) {
+		super.beginErrorCondition(recognizer);
+		if ( ++errors>maxErrors ) {
+			exceedBudget(recognizer, "too many syntax errors");
+		}
+	}
+
+	/** Return the kind of error reported to the error listeners right now
+	 *  if it comes without a RecognitionException, i.e. a single-token
+	 *  insertion or deletion; else null. {@link SyntaxError} asks this.
+	 */
+	public SyntaxError.Kind getReportingKind() {
+		return reportingKind;
+	}
+
+	@Override
+	protected void reportMissingToken(Parser recognizer) {
+		reportingKind = SyntaxError.Kind.MISSING_TOKEN;
+		try {
+			super.reportMissingToken(recognizer);
+		}
+		finally {
+			reportingKind = null;
+		}
+	}
+
+	@Override
+	protected void reportUnwantedToken(Parser recognizer) {
+		reportingKind = SyntaxError.Kind.EXTRANEOUS_TOKEN;
+		try {
+			super.reportUnwantedToken(recognizer);
+		}
+		finally {
+			reportingKind = null;
+		}
+	}
+
+	@Override
+	public void recover(Parser recognizer, RecognitionException e) {
+		spendRecoveryWork(recognizer, 1);
+		super.recover(recognizer, e);
+	}
+
 	@Override
 	protected void consumeUntil(Parser recognizer, IntervalSet set) {
 		Token o = recognizer.getCurrentToken();
 		if ( o.getType()==Token.EOF ) {
 			ErrorNode errorNode = recognizer.createErrorNode(recognizer.getRuleContext(), o);
-			recognizer.getRuleContext().addErrorNode(errorNode);
+			if ( recognizer.getBuildParseTree() ) {
+				recognizer.getRuleContext().addErrorNode(errorNode);
+			}
+			else {
+				notifyErrorNode(recognizer, errorNode);
+			}
 		}
+		int start = recognizer.getInputStream().index();
 		super.consumeUntil(recognizer, set);
+		spendRecoveryWork(recognizer, recognizer.getInputStream().index() - start);
+	}
+
+	@Override
+	public Token recoverInline(Parser recognizer) {
+		spendRecoveryWork(recognizer, 1);
+		Token t = super.recoverInline(recognizer);
+		if ( t.getTokenIndex()<0 && !recognizer.getBuildParseTree() ) {
+			notifyErrorNode(recognizer, recognizer.createErrorNode(recognizer.getRuleContext(), t));
+		}
+		return t;
+	}
+
+	protected void spendRecoveryWork(Parser recognizer, int work) {
+		recoveryWork += work;
+		if ( recoveryWork>maxRecoveryWork ) {
+			exceedBudget(recognizer, "too much error recovery");
+		}
+	}
+
+	protected void exceedBudget(Parser recognizer, String reason) {
+		budgetExceeded = true;
+		throw new RecoveryBudgetExceededException(reason, recognizer.getContext());
+	}
+
+	/** Return the tokens expected in ATN state stateNumber with ctx on
+	 *  the stack, as {@link org.antlr.v4.runtime.atn.ATN#getExpectedTokens}
+	 *  does. Also used by {@link SyntaxError} to record them.
+	 */
+	public IntervalSet getExpectedTokens(Parser recognizer, int stateNumber, RuleContext ctx) {
+		if ( expectedTokensCache==null ) {
+			return recognizer.getATN().getExpectedTokens(stateNumber, ctx);
+		}
+		return expectedTokensCache.getExpectedTokens(recognizer.getATN(), stateNumber, ctx);
+	}
+
+	@Override
+	protected IntervalSet getExpectedTokens(Parser recognizer) {
+		return getExpectedTokens(recognizer, recognizer.getState(), recognizer.getContext());
+	}
+
+	@Override
+	protected IntervalSet getErrorRecoverySet(Parser recognizer) {
+		if ( expectedTokensCache==null ) {
+			return super.getErrorRecoverySet(recognizer);
+		}
+		return expectedTokensCache.getErrorRecoverySet(recognizer.getATN(), recognizer.getContext());
+	}
+
+	/** Same message as DefaultErrorStrategy's, using the cached expected tokens. */
+	@Override
+	protected void reportInputMismatch(Parser recognizer, InputMismatchException e) {
+		IntervalSet expecting = getExpectedTokens(recognizer, e.getOffendingState(), e.getCtx());
+		String msg = "mismatched input " + getTokenErrorDisplay(e.getOffendingToken()) +
+					 " expecting " + expecting.toString(recognizer.getVocabulary());
+		recognizer.notifyErrorListeners(e.getOffendingToken(), msg, e);
+	}
+
+	protected void notifyErrorNode(Parser recognizer, ErrorNode errorNode) {
+		for (ParseTreeListener listener : recognizer.getParseListeners()) {
+			listener.visitErrorNode(errorNode);
+		}
 	}
 
 	/** By default ANTLR makes the start/stop -1/-1 for invalid tokens
@@ -0,0 +1,179 @@
+package org.antlr.intellij.adaptor.parser;
+
+import com.intellij.lang.Language;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.ATNState;
+import org.antlr.v4.runtime.atn.RuleTransition;
+import org.antlr.v4.runtime.misc.IntervalSet;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Token sets computed while reporting and recovering from syntax errors,
+ *  kept per Language and used by {@link ErrorStrategyAdaptor}.
+ *
+ *  The tokens expected in an ATN state, and the set to resync to after an
+ *  error, are found by walking the ATN up through the rule invocation
+ *  stack. Half-typed code reports errors in the same few places over and
+ *  over, so the sets are cached, keyed by the ATN state and the invoking
+ *  state of each context on the stack. The least recently used entries
+ *  are dropped beyond {@link #getMaxSize()}. Cached sets are read-only.
+ */
+public class ExpectedTokensCache {
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private static final Map<Language, ExpectedTokensCache> caches = new ConcurrentHashMap<>();
+
+	/** Guarded by itself. */
+	private final LinkedHashMap<Key, IntervalSet> sets = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, IntervalSet> eldest) {
+			return size()>maxSize;
+		}
+	};
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	protected ExpectedTokensCache() {
+	}
+
+	public static ExpectedTokensCache getInstance(Language language) {
+		return caches.computeIfAbsent(language, l -> new ExpectedTokensCache());
+	}
+
+	/** Return what {@link ATN#getExpectedTokens(int, RuleContext)} would. */
+	public IntervalSet getExpectedTokens(ATN atn, int stateNumber, RuleContext ctx) {
+		IntervalSet following = atn.nextTokens(atn.states.get(stateNumber));
+		if ( !following.contains(Token.EPSILON) ) {
+			return following; // doesn't depend on the context; the ATN caches it
+		}
+		Key key = new Key(atn, stateNumber, ctx);
+		IntervalSet expected = lookup(key);
+		if ( expected==null ) {
+			expected = atn.getExpectedTokens(stateNumber, ctx);
+			store(key, expected);
+		}
+		return expected;
+	}
+
+	/** Return what DefaultErrorStrategy.getErrorRecoverySet would for a
+	 *  parser in context ctx: the union of the tokens that can follow each
+	 *  rule invocation on the stack.
+	 */
+	public IntervalSet getErrorRecoverySet(ATN atn, RuleContext ctx) {
+		Key key = new Key(atn, ATNState.INVALID_STATE_NUMBER, ctx);
+		IntervalSet recoverSet = lookup(key);
+		if ( recoverSet==null ) {
+			recoverSet = new IntervalSet();
+			for (RuleContext c = ctx; c!=null && c.invokingState>=0; c = c.parent) {
+				RuleTransition rt = (RuleTransition)atn.states.get(c.invokingState).transition(0);
+				recoverSet.addAll(atn.nextTokens(rt.followState));
+			}
+			recoverSet.remove(Token.EPSILON);
+			store(key, recoverSet);
+		}
+		return recoverSet;
+	}
+
+	private IntervalSet lookup(Key key) {
+		IntervalSet set;
+		synchronized (sets) {
+			set = sets.get(key);
+		}
+		(set!=null ? hits : misses).incrementAndGet();
+		return set;
+	}
+
+	private void store(Key key, IntervalSet set) {
+		set.setReadonly(true);
+		synchronized (sets) {
+			sets.put(key, set);
+		}
+	}
+
+	public void clear() {
+		synchronized (sets) {
+			sets.clear();
+		}
+	}
+
+	public int getSize() {
+		synchronized (sets) {
+			return sets.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Set how many sets are kept; extra ones are dropped as new ones are cached. */
+	public void setMaxSize(int maxSize) {
+		if ( maxSize<0 ) {
+			throw new IllegalArgumentException("maxSize must not be negative");
+		}
+		this.maxSize = maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** The fraction of lookups served from the cache, or 0 if none. */
+	public double getHitRate() {
+		long h = hits.get();
+		long n = h + misses.get();
+		return n==0 ? 0 : (double)h / n;
+	}
+
+	/** An ATN state plus the invoking states of the contexts on the stack. */
+	private static final class Key {
+		private final ATN atn;
+		private final int stateNumber;
+		private final int[] invokingStates;
+		private final int hash;
+
+		Key(ATN atn, int stateNumber, RuleContext ctx) {
+			int depth = 0;
+			for (RuleContext c = ctx; c!=null; c = c.parent) {
+				depth++;
+			}
+			int[] states = new int[depth];
+			int i = 0;
+			for (RuleContext c = ctx; c!=null; c = c.parent) {
+				states[i++] = c.invokingState;
+			}
+			this.atn = atn;
+			this.stateNumber = stateNumber;
+			this.invokingStates = states;
+			this.hash = 31 * (31 * System.identityHashCode(atn) + stateNumber) + Arrays.hashCode(states);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this==o ) return true;
+			if ( !(o instanceof Key) ) return false;
+			Key other = (Key) o;
+			return hash==other.hash &&
+				   atn==other.atn &&
+				   stateNumber==other.stateNumber &&
+				   Arrays.equals(invokingStates, other.invokingStates);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
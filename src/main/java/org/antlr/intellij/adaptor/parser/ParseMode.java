@@ -0,0 +1,15 @@
+package org.antlr.intellij.adaptor.parser;
+
+/** How {@link ANTLRParserAdaptor} built a PSI tree; chosen by input size
+ *  so that huge files degrade to cheaper trees instead of exhausting the
+ *  heap. Always {@link #FULL} unless the adaptor sets size thresholds.
+ *  See {@link ANTLRParserAdaptor#getParseMode(com.intellij.lang.ASTNode)}.
+ */
+public enum ParseMode {
+	/** The input was parsed and the full tree built. */
+	FULL,
+	/** No parser ran; the root holds one leaf per token. */
+	FLAT_TOKENS,
+	/** No parser ran; the root holds one leaf per block of lines. */
+	LINE_BLOCKS
+}
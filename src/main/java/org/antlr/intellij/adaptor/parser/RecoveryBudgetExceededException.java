@@ -0,0 +1,31 @@
+package org.antlr.intellij.adaptor.parser;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+/** Thrown by {@link ErrorStrategyAdaptor} to stop the parser once a parse
+ *  has used up its error recovery budget. Unlike a bail-out, the tree
+ *  built so far is kept; {@link #getRootContext()} returns it.
+ */
+public class RecoveryBudgetExceededException extends ParseCancellationException {
+	private final transient ParserRuleContext context;
+
+	public RecoveryBudgetExceededException(String message, ParserRuleContext context) {
+		super(message);
+		this.context = context;
+	}
+
+	/** The context the parser was in when it gave up, or null. */
+	public ParserRuleContext getContext() {
+		return context;
+	}
+
+	/** The outermost context of the partial tree, or null. */
+	public ParserRuleContext getRootContext() {
+		ParserRuleContext ctx = context;
+		while ( ctx!=null && ctx.getParent()!=null ) {
+			ctx = ctx.getParent();
+		}
+		return ctx;
+	}
+}
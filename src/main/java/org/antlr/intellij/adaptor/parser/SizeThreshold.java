@@ -0,0 +1,40 @@
+package org.antlr.intellij.adaptor.parser;
+
+/** An input size limit in chars and in tokens, exceeded when the input
+ *  has more of either; see {@link ANTLRParserAdaptor#chooseParseMode}.
+ */
+public final class SizeThreshold {
+	/** A threshold no input exceeds. */
+	public static final SizeThreshold NEVER = new SizeThreshold(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+	private final int maxChars;
+	private final int maxTokens;
+
+	public SizeThreshold(int maxChars, int maxTokens) {
+		if ( maxChars<0 || maxTokens<0 ) {
+			throw new IllegalArgumentException("size limits must not be negative");
+		}
+		this.maxChars = maxChars;
+		this.maxTokens = maxTokens;
+	}
+
+	public int getMaxChars() {
+		return maxChars;
+	}
+
+	public int getMaxTokens() {
+		return maxTokens;
+	}
+
+	/** @param tokens the number of tokens, or -1 if not counted */
+	public boolean isExceeded(int chars, int tokens) {
+		return chars>maxChars || tokens>maxTokens;
+	}
+
+	/** Tokens are at least one char long, so only input with more chars
+	 *  than maxTokens, but not too many chars anyway, needs counting.
+	 */
+	boolean needsTokenCount(int chars) {
+		return chars<=maxChars && chars>maxTokens;
+	}
+}
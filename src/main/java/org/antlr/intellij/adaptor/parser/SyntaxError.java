@@ -1,47 +1,216 @@
 package org.antlr.intellij.adaptor.parser;
 
+import org.antlr.v4.runtime.ANTLRErrorStrategy;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.FailedPredicateException;
+import org.antlr.v4.runtime.InputMismatchException;
+import org.antlr.v4.runtime.LexerNoViableAltException;
 import org.antlr.v4.runtime.NoViableAltException;
+import org.antlr.v4.runtime.Parser;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.RuleContext;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.misc.IntervalSet;
 
 /** A syntax error from parsing language of plugin. These are
  *  created by SyntaxErrorListener.
+ *
+ *  Only offsets, the kind of error, the expected token types and the
+ *  token's type and text are kept, not the recognizer, exception or
+ *  token reported with the error, which would hold on to the parser,
+ *  its token stream and parse tree for as long as the error is around.
+ *  Messages of mismatched, missing and extraneous tokens are formatted
+ *  from those on first use.
  */
 public class SyntaxError {
-	private final Recognizer<?, ?> recognizer;
-	private final Token offendingSymbol;
+	public enum Kind {
+		/** The lexer matched no token. */
+		TOKEN_RECOGNITION,
+		/** No alternative of a decision matches the input. */
+		NO_VIABLE_ALTERNATIVE,
+		/** The current token doesn't match what the rule expects. */
+		INPUT_MISMATCH,
+		/** A semantic predicate failed. */
+		FAILED_PREDICATE,
+		/** A token was conjured up during single-token insertion. */
+		MISSING_TOKEN,
+		/** A token was dropped during single-token deletion. */
+		EXTRANEOUS_TOKEN,
+		/** Anything else, e.g. errors reported by a custom error strategy. */
+		OTHER
+	}
+
+	private final Kind kind;
+	private final int startOffset;
+	private final int stopOffset;
+	private final int tokenType;
+	private final String tokenText;
 	private final int line;
 	private final int charPositionInLine;
-	private final String message;
-	private final RecognitionException e;
+	/** Token types that would have been valid; null if not known. */
+	private final IntervalSet expected;
+	/** Names expected token types; generated parsers share a static instance. */
+	private final Vocabulary vocabulary;
+	private String message;
 
+	/** @deprecated use {@link #fromReport}; this copies the error it creates. */
+	@Deprecated
 	public SyntaxError(Recognizer<?, ?> recognizer,
 	                   Token offendingSymbol,
 	                   int line, int charPositionInLine,
 	                   String msg,
 	                   RecognitionException e)
 	{
-		this.recognizer = recognizer;
-		this.offendingSymbol = offendingSymbol;
-		this.line = line;
-		this.charPositionInLine = charPositionInLine;
-		this.message = msg;
-		this.e = e;
+		this(fromReport(recognizer, offendingSymbol, line, charPositionInLine, msg, e));
 	}
 
-	public Recognizer<?, ?> getRecognizer() {
-		return recognizer;
+	private SyntaxError(SyntaxError error) {
+		this(error.kind, error.startOffset, error.stopOffset, error.line, error.charPositionInLine,
+			 error.tokenType, error.tokenText, error.expected, error.vocabulary);
+		this.message = error.message;
 	}
 
-	public Token getOffendingSymbol() {
+	/** Create an error whose message is formatted from its kind, token
+	 *  and expected token types when first asked for.
+	 */
+	public SyntaxError(Kind kind,
+	                   int startOffset, int stopOffset,
+	                   int line, int charPositionInLine,
+	                   int tokenType, String tokenText,
+	                   IntervalSet expected, Vocabulary vocabulary)
+	{
+		this.kind = kind;
+		this.startOffset = startOffset;
+		this.stopOffset = stopOffset;
+		this.line = line;
+		this.charPositionInLine = charPositionInLine;
+		this.tokenType = tokenType;
+		this.tokenText = tokenText;
+		this.expected = expected;
+		this.vocabulary = vocabulary;
+	}
+
+	/** Create a compact error from what an ANTLRErrorListener is told,
+	 *  keeping none of recognizer, offendingSymbol or e. Single-token
+	 *  insertion and deletion come without an exception; their kind is
+	 *  taken from {@link ErrorStrategyAdaptor#getReportingKind()}.
+	 *
+	 *  msg is dropped if {@link #formatMessage()} can rebuild it, and
+	 *  otherwise kept since it can't be derived from the error.
+	 */
+	public static SyntaxError fromReport(Recognizer<?, ?> recognizer,
+	                                     Token offendingSymbol,
+	                                     int line, int charPositionInLine,
+	                                     String msg,
+	                                     RecognitionException e)
+	{
+		Kind kind = getKind(recognizer, e);
+		IntervalSet expected = getExpectedTokens(recognizer, e, kind);
+		Vocabulary vocabulary = recognizer!=null ? recognizer.getVocabulary() : null;
+		Token anchor = offendingSymbol;
 		if ( e instanceof NoViableAltException ) {
 			// the error node in parse tree will have the start token as bad token
 			// even if many lookahead tokens were matched before failing to find
 			// a viable alt.
-			return ((NoViableAltException) e).getStartToken();
+			anchor = ((NoViableAltException) e).getStartToken();
+		}
+		SyntaxError error;
+		if ( anchor!=null ) {
+			error = new SyntaxError(kind, anchor.getStartIndex(), anchor.getStopIndex(), line, charPositionInLine,
+									anchor.getType(), anchor.getText(), expected, vocabulary);
 		}
-		return offendingSymbol;
+		else {
+			// lexer errors have no token
+			int start = e instanceof LexerNoViableAltException ? ((LexerNoViableAltException) e).getStartIndex() : -1;
+			error = new SyntaxError(kind, start, start, line, charPositionInLine,
+									Token.INVALID_TYPE, null, expected, vocabulary);
+		}
+		if ( !error.canFormatMessage() ) {
+			error.message = msg;
+		}
+		return error;
+	}
+
+	private static Kind getKind(Recognizer<?, ?> recognizer, RecognitionException e) {
+		if ( e instanceof LexerNoViableAltException ) return Kind.TOKEN_RECOGNITION;
+		if ( e instanceof NoViableAltException ) return Kind.NO_VIABLE_ALTERNATIVE;
+		if ( e instanceof InputMismatchException ) return Kind.INPUT_MISMATCH;
+		if ( e instanceof FailedPredicateException ) return Kind.FAILED_PREDICATE;
+		if ( e==null && recognizer instanceof Parser ) {
+			// reported from reportMissingToken or reportUnwantedToken?
+			ANTLRErrorStrategy handler = ((Parser) recognizer).getErrorHandler();
+			if ( handler instanceof ErrorStrategyAdaptor ) {
+				Kind reporting = ((ErrorStrategyAdaptor) handler).getReportingKind();
+				if ( reporting!=null ) return reporting;
+			}
+		}
+		return Kind.OTHER;
+	}
+
+	private static IntervalSet getExpectedTokens(Recognizer<?, ?> recognizer, RecognitionException e, Kind kind) {
+		if ( !(recognizer instanceof Parser) ) {
+			return kind==Kind.INPUT_MISMATCH ? e.getExpectedTokens() : null;
+		}
+		Parser parser = (Parser) recognizer;
+		switch ( kind ) {
+			case INPUT_MISMATCH:
+				return getExpectedTokens(parser, e.getOffendingState(), e.getCtx());
+			case MISSING_TOKEN:
+			case EXTRANEOUS_TOKEN:
+				return getExpectedTokens(parser, parser.getState(), parser.getContext());
+			default:
+				return null;
+		}
+	}
+
+	/** Ask the error strategy, which may have the set cached. */
+	private static IntervalSet getExpectedTokens(Parser parser, int stateNumber, RuleContext ctx) {
+		if ( parser.getErrorHandler() instanceof ErrorStrategyAdaptor ) {
+			return ((ErrorStrategyAdaptor) parser.getErrorHandler()).getExpectedTokens(parser, stateNumber, ctx);
+		}
+		return parser.getATN().getExpectedTokens(stateNumber, ctx);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/** The char index the error is reported at; usually the start of a token. */
+	public int getStartOffset() {
+		return startOffset;
+	}
+
+	/** The char index of the last char of the error's token, inclusive. */
+	public int getStopOffset() {
+		return stopOffset;
+	}
+
+	/** The token types that would have been valid, or null if not known. */
+	public IntervalSet getExpectedTokens() {
+		return expected;
+	}
+
+	/** @deprecated errors don't keep the recognizer; always null. */
+	@Deprecated
+	public Recognizer<?, ?> getRecognizer() {
+		return null;
+	}
+
+	/** Return a token detached from any token source or input stream,
+	 *  with the type, text and offsets of the token the error was reported at.
+	 *
+	 *  @deprecated use {@link #getStartOffset()} and {@link #getStopOffset()}.
+	 */
+	@Deprecated
+	public Token getOffendingSymbol() {
+		CommonToken token = new CommonToken(tokenType, tokenText);
+		token.setStartIndex(startOffset);
+		token.setStopIndex(stopOffset);
+		token.setLine(line);
+		token.setCharPositionInLine(charPositionInLine);
+		return token;
 	}
 
 	public int getLine() {
@@ -53,10 +222,69 @@ public class SyntaxError {
 	}
 
 	public String getMessage() {
+		if ( message==null ) {
+			message = formatMessage();
+		}
 		return message;
 	}
 
+	/** @deprecated errors don't keep the exception; always null. */
+	@Deprecated
 	public RecognitionException getException() {
-		return e;
+		return null;
+	}
+
+	/** True if {@link #formatMessage()} gives the message ANTLR would. */
+	private boolean canFormatMessage() {
+		switch ( kind ) {
+			case INPUT_MISMATCH:
+			case MISSING_TOKEN:
+			case EXTRANEOUS_TOKEN:
+				return expected!=null && vocabulary!=null;
+			default:
+				return false;
+		}
+	}
+
+	/** Format the message the way DefaultErrorStrategy would. */
+	protected String formatMessage() {
+		String input = getTokenErrorDisplay();
+		String expecting = expected==null ? "" : " expecting " + formatExpected();
+		switch ( kind ) {
+			case TOKEN_RECOGNITION:
+				return "token recognition error";
+			case NO_VIABLE_ALTERNATIVE:
+				return "no viable alternative at input " + input;
+			case INPUT_MISMATCH:
+				return "mismatched input " + input + expecting;
+			case MISSING_TOKEN:
+				return "missing " + (expected==null ? "token" : formatExpected()) + " at " + input;
+			case EXTRANEOUS_TOKEN:
+				return "extraneous input " + input + expecting;
+			default:
+				return "syntax error at " + input;
+		}
+	}
+
+	/** See DefaultErrorStrategy.getTokenErrorDisplay. */
+	private String getTokenErrorDisplay() {
+		String text = tokenText;
+		if ( text==null ) {
+			text = tokenType==Token.EOF ? "<EOF>" : "<" + tokenType + ">";
+		}
+		return "'" + escape(text) + "'";
+	}
+
+	private String formatExpected() {
+		return vocabulary!=null ? expected.toString(vocabulary) : expected.toString();
+	}
+
+	private static String escape(String text) {
+		return text.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+	}
+
+	@Override
+	public String toString() {
+		return "line " + line + ":" + charPositionInLine + " " + getMessage();
 	}
 }
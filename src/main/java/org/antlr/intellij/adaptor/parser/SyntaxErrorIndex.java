@@ -0,0 +1,84 @@
+package org.antlr.intellij.adaptor.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Syntax errors sorted by {@link SyntaxError#getStartOffset() start offset}
+ *  in a primitive array, with errors at the same offset in the order they
+ *  were added. The parser reports errors in input order, so adding is
+ *  usually an append; no error replaces another.
+ */
+public final class SyntaxErrorIndex {
+	private static final int[] NO_OFFSETS = new int[0];
+	private static final SyntaxError[] NO_ERRORS = new SyntaxError[0];
+
+	private int[] offsets = NO_OFFSETS;
+	private SyntaxError[] errors = NO_ERRORS;
+	private int size;
+
+	public void add(SyntaxError error) {
+		int offset = error.getStartOffset();
+		int i = size>0 && offsets[size - 1]>offset ? upperBound(offset) : size;
+		if ( size==offsets.length ) {
+			int capacity = Math.max(8, size * 2);
+			offsets = Arrays.copyOf(offsets, capacity);
+			errors = Arrays.copyOf(errors, capacity);
+		}
+		System.arraycopy(offsets, i, offsets, i + 1, size - i);
+		System.arraycopy(errors, i, errors, i + 1, size - i);
+		offsets[i] = offset;
+		errors[i] = error;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	public SyntaxError get(int i) {
+		if ( i<0 || i>=size ) throw new IndexOutOfBoundsException(i);
+		return errors[i];
+	}
+
+	public int getOffset(int i) {
+		if ( i<0 || i>=size ) throw new IndexOutOfBoundsException(i);
+		return offsets[i];
+	}
+
+	/** Return the first error added at offset, or null if none. */
+	public SyntaxError getFirstAt(int offset) {
+		int i = ceilingIndex(offset);
+		return i<size && offsets[i]==offset ? errors[i] : null;
+	}
+
+	public List<SyntaxError> toList() {
+		return new ArrayList<>(Arrays.asList(errors).subList(0, size));
+	}
+
+	/** Return the index of the first error at or after offset; {@link #size()} if none. */
+	public int ceilingIndex(int offset) {
+		int lo = 0, hi = size;
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( offsets[mid]<offset ) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/** Index of the first offset > offset. */
+	private int upperBound(int offset) {
+		int lo = 0, hi = size;
+		while ( lo<hi ) {
+			int mid = (lo + hi) >>> 1;
+			if ( offsets[mid]<=offset ) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
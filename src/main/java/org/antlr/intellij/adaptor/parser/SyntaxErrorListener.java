@@ -6,40 +6,57 @@ import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /** Traps errors from parsing language of plugin. E.g., for a Java plugin,
  *  this would catch errors when people type invalid Java code into .java file.
  *  This swallows the errors as the PSI tree has error nodes.
+ *
+ *  Every reported error is kept, ordered by offset.
  */
 public class SyntaxErrorListener extends BaseErrorListener {
-	private final Map<RecognitionException, SyntaxError> syntaxErrors = new HashMap<>();
+	private final SyntaxErrorIndex syntaxErrors = new SyntaxErrorIndex();
+	/** For {@link #getErrorMap()}; errors don't refer to their exception. */
+	private final Map<RecognitionException, SyntaxError> errorsByException = new WeakHashMap<>();
 
 	public SyntaxErrorListener() {
 	}
 
 	public List<SyntaxError> getSyntaxErrors() {
-		return new ArrayList<>(syntaxErrors.values());
+		return syntaxErrors.toList();
 	}
 
-	Map<RecognitionException, SyntaxError> getErrorMap() {
+	SyntaxErrorIndex getErrorIndex() {
 		return syntaxErrors;
 	}
 
+	/** Return the errors keyed by exception, where a later error replaces
+	 *  an earlier one with the same exception, as before errors were
+	 *  indexed by offset. Exceptions are only weakly referenced, so errors
+	 *  whose exception was collected are missing.
+	 *
+	 *  @deprecated errors without an exception collide; use {@link #getSyntaxErrors()}.
+	 */
+	@Deprecated
+	Map<RecognitionException, SyntaxError> getErrorMap() {
+		return errorsByException;
+	}
+
 	@Override
 	public void syntaxError(Recognizer<?, ?> recognizer,
 							Object offendingSymbol,
 							int line, int charPositionInLine,
 							String msg, RecognitionException e)
 	{
-		syntaxErrors.put(e, new SyntaxError(recognizer, (Token) offendingSymbol, line, charPositionInLine, msg, e));
+		SyntaxError error = SyntaxError.fromReport(recognizer, (Token) offendingSymbol, line, charPositionInLine, msg, e);
+		syntaxErrors.add(error);
+		errorsByException.put(e, error);
 	}
 
 	@Override
 	public String toString() {
-		return Utils.join(syntaxErrors.values().iterator(), "\n");
+		return Utils.join(syntaxErrors.toList().iterator(), "\n");
 	}
 }
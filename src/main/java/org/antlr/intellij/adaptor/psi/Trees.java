@@ -46,6 +46,7 @@ import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.util.PsiUtilCore;
 import org.antlr.intellij.adaptor.lexer.RuleIElementType;
+import org.antlr.intellij.adaptor.lexer.SelfContainedRuleElementType;
 import org.antlr.intellij.adaptor.lexer.TokenIElementType;
 import org.jetbrains.annotations.NotNull;
 
@@ -107,6 +108,21 @@ public class Trees {
 		return m;
 	}
 
+	/** Return the ANTLR rule index of nodes of elementType, or -1 if it
+	 *  isn't a rule's type. Besides {@link RuleIElementType}, this covers
+	 *  the {@link SelfContainedRuleElementType}s registered with
+	 *  {@link org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory#defineRuleIElementType}.
+	 */
+	public static int getRuleIndex(IElementType elementType) {
+		if ( elementType instanceof RuleIElementType ) {
+			return ((RuleIElementType) elementType).getRuleIndex();
+		}
+		if ( elementType instanceof SelfContainedRuleElementType ) {
+			return ((SelfContainedRuleElementType) elementType).getRuleIndex();
+		}
+		return -1;
+	}
+
 	public static Collection<PsiElement> findAllTokenNodes(PsiElement t, int ttype) {
 		return findAllNodes(t, ttype, true);
 	}
@@ -115,6 +131,13 @@ public class Trees {
 		return findAllNodes(t, ruleIndex, false);
 	}
 
+	/** Return the nodes at or below t of the given token type or rule index.
+	 *  A rule collapsed into a {@link org.antlr.intellij.adaptor.lexer.LazyRuleIElementType}
+	 *  chameleon is matched like any other rule node, but its content has no
+	 *  PSI until parsed: the search parses each chameleon it descends into.
+	 *  Search the outline only by stopping at such nodes yourself, e.g. with
+	 *  {@link #findNodeSuchThat}.
+	 */
 	public static List<PsiElement> findAllNodes(PsiElement t, int index, boolean findTokens) {
 		List<PsiElement> nodes = new ArrayList<>();
 		_findAllNodes(t, index, findTokens, nodes);
@@ -136,10 +159,7 @@ public class Trees {
 		}
 		else if ( !findTokens && t instanceof ANTLRPsiNode ) {
 			ANTLRPsiNode ctx = (ANTLRPsiNode)t;
-			IElementType elType = ctx.getNode().getElementType();
-			if ( elType instanceof RuleIElementType) {
-				if ( ((RuleIElementType) elType).getRuleIndex()==index ) nodes.add(t);
-			}
+			if ( getRuleIndex(ctx.getNode().getElementType())==index ) nodes.add(t);
 		}
 		// check children
 		for (PsiElement c : t.getChildren()) {
@@ -190,8 +210,7 @@ public class Trees {
 			PsiElement sub = getRootOfSubtreeEnclosingRegion(c, startCharIndex, stopCharIndex);
 			if ( sub!=null ) return sub;
 		}
-		IElementType elementType = t.getNode().getElementType();
-		if ( elementType instanceof RuleIElementType ) {
+		if ( getRuleIndex(t.getNode().getElementType())>=0 ) {
 			TextRange r = t.getNode().getTextRange();
 			// is range fully contained in t?  Note: jetbrains uses exclusive right end (use < not <=)
 			if ( startCharIndex>=r.getStartOffset() && stopCharIndex<r.getEndOffset() ) {
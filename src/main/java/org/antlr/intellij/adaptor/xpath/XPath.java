@@ -36,8 +36,8 @@ import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiReference;
 import com.intellij.psi.impl.source.tree.CompositePsiElement;
+import com.intellij.psi.tree.IElementType;
 import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
-import org.antlr.intellij.adaptor.lexer.RuleIElementType;
 import org.antlr.intellij.adaptor.lexer.TokenIElementType;
 import org.antlr.intellij.adaptor.psi.Trees;
 import org.antlr.v4.runtime.CharStream;
@@ -97,13 +97,22 @@ import java.util.Map;
  *
  * <p>
  * Whitespace is not allowed.</p>
+ *
+ * <p>
+ * Rules registered with
+ * {@link PSIElementTypeFactory#defineRuleIElementType}, reparseable or
+ * lazy, match by rule name like any other rule. A path that continues
+ * below a lazily parsed rule parses that rule's content first.</p>
  */
 public class XPath {
 	public static final String WILDCARD = "*"; // word not operator/separator
 	public static final String NOT = "!"; 	   // word for invert operator
 
 	private final List<TokenIElementType> tokenElementTypes;
-	private final List<RuleIElementType> ruleElementTypes;
+	/** The element types of rule nodes in the PSI, including any
+	 *  registered with {@link PSIElementTypeFactory#defineRuleIElementType}.
+	 */
+	private final List<IElementType> ruleElementTypes;
 	private final Map<String, Integer> 	 ruleIndexes;
 	private final Map<String, Integer> 	 tokenTypes;
 
@@ -112,8 +121,11 @@ public class XPath {
 	public XPath(Language language, String path) {
 		this.path = path;
 		this.tokenElementTypes = PSIElementTypeFactory.getTokenIElementTypes(language);
-		this.ruleElementTypes  = PSIElementTypeFactory.getRuleIElementTypes(language);
 		this.ruleIndexes       = PSIElementTypeFactory.getRuleNameToIndexMap(language);
+		this.ruleElementTypes  = new ArrayList<>(ruleIndexes.size());
+		for (int i = 0; i < ruleIndexes.size(); i++) {
+			ruleElementTypes.add(PSIElementTypeFactory.getRuleIElementType(language, i));
+		}
 		this.tokenTypes        = PSIElementTypeFactory.getTokenNameToTypeMap(language);
 	}
 
@@ -31,8 +31,7 @@
 package org.antlr.intellij.adaptor.xpath;
 
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.tree.IElementType;
-import org.antlr.intellij.adaptor.lexer.RuleIElementType;
+import org.antlr.intellij.adaptor.psi.Trees;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -50,11 +49,10 @@ public class XPathRuleElement extends XPathElement {
 		// return all children of t that match ANTLR rule index
 		List<PsiElement> nodes = new ArrayList<>();
 		for (PsiElement c : t.getChildren()) {
-			IElementType elementType = c.getNode().getElementType();
-			if ( elementType instanceof RuleIElementType) {
-				RuleIElementType ruleEl = (RuleIElementType)elementType;
-				if ( (ruleEl.getRuleIndex() == ruleIndex && !invert) ||
-					 (ruleEl.getRuleIndex() != ruleIndex && invert) )
+			int index = Trees.getRuleIndex(c.getNode().getElementType());
+			if ( index>=0 ) {
+				if ( (index == ruleIndex && !invert) ||
+					 (index != ruleIndex && invert) )
 				{
 					nodes.add(c);
 				}
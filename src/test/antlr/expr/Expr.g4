@@ -0,0 +1,58 @@
+grammar Expr;
+
+@header {
+package org.antlr.intellij.adaptor.expr;
+}
+
+file
+    :   decl* EOF
+    ;
+
+decl
+    :   'fun' ID '(' ')' body
+    |   'var' ID '=' expr ';'
+    ;
+
+body
+    :   '{' stat* '}'
+    ;
+
+block
+    :   '{' stat* '}'
+    ;
+
+stat
+    :   'var' ID '=' expr ';'
+    |   'return' expr ';'
+    |   expr ';'
+    |   nested
+    ;
+
+nested
+    :   block
+    ;
+
+expr
+    :   expr ('*'|'/') expr
+    |   expr ('+'|'-') expr
+    |   primary
+    ;
+
+primary
+    :   ID
+    |   INT
+    |   '(' expr ')'
+    ;
+
+FUN     : 'fun' ;
+VAR     : 'var' ;
+LBRACE  : '{' ;
+RBRACE  : '}' ;
+SEMI    : ';' ;
+ID      : [a-zA-Z_] [a-zA-Z_0-9]* ;
+INT     : [0-9]+ ;
+DOC     : '/**' .*? '*/' -> channel(2) ;
+COMMENT : '//' ~[\r\n]* -> channel(HIDDEN) ;
+HASH_COMMENT : '#' ~[\r\n]* -> type(COMMENT), channel(HIDDEN) ;
+ESCAPED_SEMI : '\\;' -> type(SEMI), channel(HIDDEN) ;
+WS      : [ \t\r\n]+ -> channel(HIDDEN) ;
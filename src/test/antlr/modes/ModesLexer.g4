@@ -0,0 +1,25 @@
+lexer grammar ModesLexer;
+
+@header {
+package org.antlr.intellij.adaptor.modes;
+}
+
+OPEN: '<' -> pushMode(TAG);
+TEXT: ~'<'+;
+
+mode TAG;
+CLOSE: '>' -> popMode;
+QUOTE: '"' -> pushMode(STRING);
+NAME: [a-z]+;
+EQ: '=';
+TAG_WS: [ \t\r\n]+;
+
+mode STRING;
+END_QUOTE: '"' -> popMode;
+INTERP: '{' -> pushMode(EXPR);
+STRING_TEXT: ~["{]+;
+
+mode EXPR;
+END_INTERP: '}' -> popMode;
+EXPR_OPEN: '<' -> pushMode(TAG);
+EXPR_TEXT: ~[}<]+;
@@ -0,0 +1,120 @@
+package expr;
+
+import com.intellij.testFramework.UsefulTestCase;
+import org.antlr.intellij.adaptor.CancellationThrottle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+public class CancellationThrottleTest extends UsefulTestCase {
+	private static final long MAX_LATENCY = 16_000;
+
+	/** With steps taking no time the clock is read ever more rarely, but
+	 *  at least every MAX_CLOCK_INTERVAL calls, and nothing is checked.
+	 */
+	public void testClockIntervalGrowsToBound() {
+		FakeClock clock = new FakeClock();
+		CancellationThrottle throttle = clock.throttle(MAX_LATENCY);
+		clock.run(10_000);
+		List<Long> gaps = clock.readGaps();
+		assertTrue(gaps.size() > 10);
+		for (int i = 1; i < gaps.size(); i++) {
+			assertTrue(gaps.get(i) >= gaps.get(i - 1));
+			assertTrue(gaps.get(i) <= CancellationThrottle.MAX_CLOCK_INTERVAL);
+		}
+		assertEquals(CancellationThrottle.MAX_CLOCK_INTERVAL, (long) gaps.get(gaps.size() - 1));
+		assertEquals(10_000, throttle.getCallCount());
+		assertEquals(0, throttle.getCheckCount());
+	}
+
+	/** Once steps slow down the clock is read more often again, down to
+	 *  every call.
+	 */
+	public void testClockIntervalShrinksWhenStepsSlowDown() {
+		FakeClock clock = new FakeClock();
+		CancellationThrottle throttle = clock.throttle(MAX_LATENCY);
+		clock.run(10_000);
+		int fastReads = clock.reads.size();
+
+		clock.step = MAX_LATENCY / 4;
+		clock.run(6_000);
+		List<Long> gaps = clock.readGaps().subList(fastReads - 1, clock.reads.size() - 1);
+		for (int i = 1; i < gaps.size(); i++) {
+			assertTrue(gaps.get(i) <= gaps.get(i - 1));
+		}
+		assertEquals(1L, (long) gaps.get(gaps.size() - 1));
+		// every other step passes half the bound
+		assertTrue(throttle.getCheckCount() > 1_500);
+		assertEquals(16_000, throttle.getCallCount());
+	}
+
+	/** With steady steps the clock is read every call and cancellation is
+	 *  checked as soon as half the bound has passed.
+	 */
+	public void testChecksOnceHalfTheBoundElapsed() {
+		FakeClock clock = new FakeClock();
+		CancellationThrottle throttle = clock.throttle(1_000);
+		clock.step = 100;
+		clock.run(100);
+		assertEquals(100, clock.reads.size());
+		assertEquals(100, throttle.getCallCount());
+		assertEquals(20, throttle.getCheckCount());
+		assertEquals(500, throttle.getMaxObservedLatencyNanos());
+
+		clock.now += 2_000;
+		throttle.checkNow();
+		assertEquals(100, throttle.getCallCount());
+		assertEquals(21, throttle.getCheckCount());
+		assertEquals(2_000, throttle.getMaxObservedLatencyNanos());
+	}
+
+	public void testMaxLatencyMustBePositive() {
+		try {
+			new CancellationThrottle(0, () -> 0);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** Records the call count at each read; {@link #run} advances it by
+	 *  step per call.
+	 */
+	private static class FakeClock implements LongSupplier {
+		final List<Long> reads = new ArrayList<>();
+		long now;
+		long step;
+		private CancellationThrottle throttle;
+
+		CancellationThrottle throttle(long maxLatencyNanos) {
+			throttle = new CancellationThrottle(maxLatencyNanos, this);
+			return throttle;
+		}
+
+		void run(int calls) {
+			for (int i = 0; i < calls; i++) {
+				now += step;
+				throttle.check();
+			}
+		}
+
+		@Override
+		public long getAsLong() {
+			if ( throttle!=null ) {
+				reads.add(throttle.getCallCount());
+			}
+			return now;
+		}
+
+		/** The number of calls between successive reads. */
+		List<Long> readGaps() {
+			List<Long> gaps = new ArrayList<>();
+			for (int i = 1; i < reads.size(); i++) {
+				gaps.add(reads.get(i) - reads.get(i - 1));
+			}
+			return gaps;
+		}
+	}
+}
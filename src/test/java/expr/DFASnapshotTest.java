@@ -0,0 +1,164 @@
+package expr;
+
+import com.intellij.testFramework.UsefulTestCase;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
+import org.antlr.intellij.adaptor.expr.ExprLexer;
+import org.antlr.intellij.adaptor.expr.ExprParser;
+import org.antlr.intellij.adaptor.issue2.Issue2Lexer;
+import org.antlr.intellij.adaptor.issue2.Issue2Parser;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+public class DFASnapshotTest extends UsefulTestCase {
+	private static final List<String> CORPUS = Arrays.asList(
+		"var x = 1 + 2 * 3 - 4;",
+		"fun f() { var y = (x + 1) * x / 2; { return y - x - 1; } }",
+		"fun g() { return f; } var z = g;"
+	);
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = Files.createTempDirectory("dfa-snapshot");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		try {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(dir);
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testRoundTripPreservesDFA() throws IOException {
+		TestRuntime warm = warmRuntime();
+		Path file = dir.resolve("expr.dfa");
+		warm.saveSnapshot(file);
+
+		TestRuntime loaded = new TestRuntime(ExprLexer::new, ExprParser::new);
+		assertTrue(loaded.loadSnapshot(file));
+		assertTrue(getStateCount(loaded.getParserDFA()) > 0);
+		assertTrue(getStateCount(loaded.getLexerDFA()) > 0);
+		// states with predicates or lexer actions are left out, so only
+		// check that everything loaded is what was saved
+		assertSubsetOf(loaded.getLexerDFA(), warm.getLexerDFA());
+		assertSubsetOf(loaded.getParserDFA(), warm.getParserDFA());
+
+		// everything loaded is restorable, so a second round trip is exact
+		Path again = dir.resolve("again.dfa");
+		loaded.saveSnapshot(again);
+		TestRuntime reloaded = new TestRuntime(ExprLexer::new, ExprParser::new);
+		assertTrue(reloaded.loadSnapshot(again));
+		assertEquals(getStateCount(loaded.getLexerDFA()), getStateCount(reloaded.getLexerDFA()));
+		assertEquals(getStateCount(loaded.getParserDFA()), getStateCount(reloaded.getParserDFA()));
+		assertSubsetOf(reloaded.getLexerDFA(), loaded.getLexerDFA());
+		assertSubsetOf(reloaded.getParserDFA(), loaded.getParserDFA());
+	}
+
+	public void testLoadedDFAStillParses() throws IOException {
+		Path file = dir.resolve("expr.dfa");
+		warmRuntime().saveSnapshot(file);
+
+		TestRuntime loaded = new TestRuntime(ExprLexer::new, ExprParser::new);
+		assertTrue(loaded.loadSnapshot(file));
+		loaded.warmUp(CORPUS, p -> ((ExprParser) p).file());
+		// parsing the same input fills in exactly the states that were left out
+		TestRuntime warm = warmRuntime();
+		assertEquals(getStateCount(warm.getParserDFA()), getStateCount(loaded.getParserDFA()));
+	}
+
+	public void testSnapshotOfOtherGrammarIsDeleted() throws IOException {
+		Path file = dir.resolve("expr.dfa");
+		warmRuntime().saveSnapshot(file);
+
+		TestRuntime other = new TestRuntime(Issue2Lexer::new, Issue2Parser::new);
+		assertFalse(other.loadSnapshot(file));
+		assertFalse(Files.exists(file));
+		assertEquals(0, getStateCount(other.getParserDFA()));
+	}
+
+	public void testUnreadableSnapshotIsIgnored() throws IOException {
+		Path file = dir.resolve("expr.dfa");
+		Files.write(file, new byte[]{1, 2, 3});
+
+		TestRuntime runtime = new TestRuntime(ExprLexer::new, ExprParser::new);
+		assertFalse(runtime.loadSnapshot(file));
+		assertEquals(0, getStateCount(runtime.getParserDFA()));
+	}
+
+	private static TestRuntime warmRuntime() {
+		TestRuntime runtime = new TestRuntime(ExprLexer::new, ExprParser::new);
+		runtime.warmUp(CORPUS, p -> ((ExprParser) p).file());
+		return runtime;
+	}
+
+	/** Every state of each decision in subset, and every edge between
+	 *  them, must also be in superset.
+	 */
+	private static void assertSubsetOf(DFA[] subset, DFA[] superset) {
+		assertEquals(superset.length, subset.length);
+		for (int d = 0; d < subset.length; d++) {
+			for (DFAState s : subset[d].states.values()) {
+				DFAState expected = superset[d].states.get(s);
+				assertNotNull("decision " + d + " state " + s, expected);
+				assertEquals(expected.isAcceptState, s.isAcceptState);
+				assertEquals(expected.prediction, s.prediction);
+				if ( s.edges==null ) continue;
+				assertNotNull(expected.edges);
+				for (int i = 0; i < s.edges.length; i++) {
+					if ( s.edges[i]!=null ) {
+						assertEquals("decision " + d + " edge " + i, expected.edges[i], s.edges[i]);
+					}
+				}
+			}
+		}
+	}
+
+	private static int getStateCount(DFA[] decisionToDFA) {
+		int n = 0;
+		for (DFA dfa : decisionToDFA) {
+			n += dfa.states.size();
+		}
+		return n;
+	}
+
+	/** A runtime that isn't registered for any language, so each test
+	 *  starts from an empty DFA.
+	 */
+	private static class TestRuntime extends ANTLRRecognizerRuntime {
+		TestRuntime(Function<CharStream, ? extends Lexer> lexerFactory,
+		            Function<TokenStream, ? extends Parser> parserFactory)
+		{
+			super(ExprLanguage.INSTANCE, lexerFactory, parserFactory);
+		}
+
+		DFA[] getLexerDFA() {
+			return lexerDFA;
+		}
+
+		DFA[] getParserDFA() {
+			return parserDFA;
+		}
+	}
+}
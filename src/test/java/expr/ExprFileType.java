@@ -0,0 +1,40 @@
+package expr;
+
+import com.intellij.openapi.fileTypes.LanguageFileType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+
+class ExprFileType extends LanguageFileType {
+
+	static ExprFileType INSTANCE = new ExprFileType();
+
+	private ExprFileType() {
+		super(ExprLanguage.INSTANCE);
+	}
+
+	@NotNull
+	@Override
+	public String getName() {
+		return "Expr";
+	}
+
+	@NotNull
+	@Override
+	public String getDescription() {
+		return "Expr";
+	}
+
+	@NotNull
+	@Override
+	public String getDefaultExtension() {
+		return "expr";
+	}
+
+	@Nullable
+	@Override
+	public Icon getIcon() {
+		return null;
+	}
+}
@@ -0,0 +1,12 @@
+package expr;
+
+import com.intellij.lang.Language;
+
+class ExprLanguage extends Language {
+
+	static ExprLanguage INSTANCE = new ExprLanguage();
+
+	private ExprLanguage() {
+		super("Expr");
+	}
+}
@@ -0,0 +1,215 @@
+package expr;
+
+import com.intellij.extapi.psi.PsiFileBase;
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lang.PsiParser;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.TokenSet;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
+import org.antlr.intellij.adaptor.expr.ExprLexer;
+import org.antlr.intellij.adaptor.expr.ExprParser;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor;
+import org.antlr.intellij.adaptor.lexer.LazyRuleIElementType;
+import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
+import org.antlr.intellij.adaptor.lexer.ReparseableRuleIElementType;
+import org.antlr.intellij.adaptor.parser.ANTLRParserAdaptor;
+import org.antlr.intellij.adaptor.parser.ChainRuleCollapsePolicy;
+import org.antlr.intellij.adaptor.parser.SizeThreshold;
+import org.antlr.intellij.adaptor.psi.ANTLRPsiNode;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A small expression language whose parser adaptor options tests can
+ *  switch, to compare the trees built with and without them.
+ */
+public class ExprParserDefinition implements ParserDefinition {
+	static final IFileElementType FILE;
+	static final TokenSet WHITESPACE;
+	static final TokenSet COMMENTS;
+
+	static {
+		PSIElementTypeFactory.defineLanguageIElementTypes(
+			ExprLanguage.INSTANCE,
+			ExprLexer.VOCABULARY,
+			ExprParser.ruleNames,
+			ExprLexer._ATN
+		);
+		PSIElementTypeFactory.defineRuleIElementType(
+			ExprLanguage.INSTANCE,
+			new ReparseableRuleIElementType(ExprParser.RULE_block, "block", ExprLanguage.INSTANCE,
+											ExprLexer.LBRACE, ExprLexer.RBRACE)
+		);
+		// a self-contained rule whose contexts are always chain links
+		PSIElementTypeFactory.defineRuleIElementType(
+			ExprLanguage.INSTANCE,
+			new ReparseableRuleIElementType(ExprParser.RULE_nested, "nested", ExprLanguage.INSTANCE,
+											ExprLexer.LBRACE, ExprLexer.RBRACE)
+		);
+		PSIElementTypeFactory.defineRuleIElementType(
+			ExprLanguage.INSTANCE,
+			new LazyRuleIElementType(ExprParser.RULE_body, "body", ExprLanguage.INSTANCE,
+									 ExprLexer.LBRACE, ExprLexer.RBRACE),
+			parser -> {
+				bodyParses.incrementAndGet();
+				return ((ExprParser) parser).body();
+			}
+		);
+		ANTLRRecognizerRuntime.define(ExprLanguage.INSTANCE, ExprLexer::new, ExprParser::new);
+		FILE = new IFileElementType(ExprLanguage.INSTANCE);
+		WHITESPACE = PSIElementTypeFactory.createTokenSet(ExprLanguage.INSTANCE, ExprLexer.WS);
+		// every other off-channel token, so the builder skips them too
+		COMMENTS = TokenSet.andNot(PSIElementTypeFactory.createHiddenTokenSet(ExprLanguage.INSTANCE), WHITESPACE);
+	}
+
+	/** Options of the parser adaptors created from now on. */
+	static boolean streaming;
+	static boolean twoStage;
+	/** Parse each top-level declaration as a chunk of its own. */
+	static boolean chunked;
+
+	/** Size thresholds of the degraded parse modes. */
+	static SizeThreshold flatTokens = SizeThreshold.NEVER;
+	static SizeThreshold lineBlocks = SizeThreshold.NEVER;
+	static int linesPerBlock = 1000;
+	static ChainRuleCollapsePolicy chainRules = ChainRuleCollapsePolicy.NONE;
+
+	/** Counts invocations of the start rule, e.g. one per chunk. */
+	static final AtomicInteger startRuleParses = new AtomicInteger();
+	/** Counts lazy bodies parsed on their own. */
+	static final AtomicInteger bodyParses = new AtomicInteger();
+
+	static void resetOptions() {
+		streaming = false;
+		twoStage = false;
+		chunked = false;
+		flatTokens = SizeThreshold.NEVER;
+		lineBlocks = SizeThreshold.NEVER;
+		linesPerBlock = 1000;
+		chainRules = ChainRuleCollapsePolicy.NONE;
+	}
+
+	@NotNull
+	@Override
+	public Lexer createLexer(Project project) {
+		return new ANTLRLexerAdaptor(ExprLanguage.INSTANCE, ANTLRRecognizerRuntime.getInstance(ExprLanguage.INSTANCE).createLexer());
+	}
+
+	@Override
+	public PsiParser createParser(Project project) {
+		boolean streaming = ExprParserDefinition.streaming;
+		boolean twoStage = ExprParserDefinition.twoStage;
+		boolean chunked = ExprParserDefinition.chunked;
+		SizeThreshold flatTokens = ExprParserDefinition.flatTokens;
+		SizeThreshold lineBlocks = ExprParserDefinition.lineBlocks;
+		int linesPerBlock = ExprParserDefinition.linesPerBlock;
+		ChainRuleCollapsePolicy chainRules = ExprParserDefinition.chainRules;
+		return new ANTLRParserAdaptor(ExprLanguage.INSTANCE, ANTLRRecognizerRuntime.getInstance(ExprLanguage.INSTANCE).createParser()) {
+			@Override
+			protected ParseTree parse(Parser parser, IElementType root) {
+				startRuleParses.incrementAndGet();
+				return ((ExprParser) parser).file();
+			}
+
+			@Override
+			protected boolean isStreamingParse() {
+				return streaming;
+			}
+
+			@Override
+			protected boolean isTwoStageParse() {
+				return twoStage;
+			}
+
+			@Override
+			protected int[] getTopLevelSyncTokenTypes() {
+				return chunked ? new int[]{ExprLexer.FUN, ExprLexer.VAR} : null;
+			}
+
+			@Override
+			protected int[] getNestingOpenTokenTypes() {
+				return new int[]{ExprLexer.LBRACE};
+			}
+
+			@Override
+			protected int[] getNestingCloseTokenTypes() {
+				return new int[]{ExprLexer.RBRACE};
+			}
+
+			@Override
+			protected int getMinChunkTokens() {
+				return 1;
+			}
+
+			@Override
+			protected SizeThreshold getFlatTokensThreshold() {
+				return flatTokens;
+			}
+
+			@Override
+			protected SizeThreshold getLineBlocksThreshold() {
+				return lineBlocks;
+			}
+
+			@Override
+			protected int getLinesPerBlock() {
+				return linesPerBlock;
+			}
+
+			@Override
+			protected ChainRuleCollapsePolicy getChainRuleCollapsePolicy() {
+				return chainRules;
+			}
+		};
+	}
+
+	@Override
+	public IFileElementType getFileNodeType() {
+		return FILE;
+	}
+
+	@NotNull
+	@Override
+	public TokenSet getWhitespaceTokens() {
+		return WHITESPACE;
+	}
+
+	@NotNull
+	@Override
+	public TokenSet getCommentTokens() {
+		return COMMENTS;
+	}
+
+	@NotNull
+	@Override
+	public TokenSet getStringLiteralElements() {
+		return TokenSet.EMPTY;
+	}
+
+	@NotNull
+	@Override
+	public PsiElement createElement(ASTNode node) {
+		return new ANTLRPsiNode(node);
+	}
+
+	@Override
+	public PsiFile createFile(FileViewProvider viewProvider) {
+		return new PsiFileBase(viewProvider, ExprLanguage.INSTANCE) {
+			@NotNull
+			@Override
+			public FileType getFileType() {
+				return ExprFileType.INSTANCE;
+			}
+		};
+	}
+}
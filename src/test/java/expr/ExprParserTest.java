@@ -0,0 +1,926 @@
+package expr;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.lexer.Lexer;
+import com.intellij.psi.PlainTextTokenTypes;
+import com.intellij.psi.PsiComment;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiErrorElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.ParsingTestCase;
+import org.antlr.intellij.adaptor.ANTLRRecognizerPool;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
+import org.antlr.intellij.adaptor.expr.ExprLexer;
+import org.antlr.intellij.adaptor.expr.ExprParser;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor;
+import org.antlr.intellij.adaptor.lexer.ANTLRTokenBatch;
+import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
+import org.antlr.intellij.adaptor.lexer.PSIRawTokens;
+import org.antlr.intellij.adaptor.lexer.PSITokenSource;
+import org.antlr.intellij.adaptor.lexer.PSITokenStream;
+import org.antlr.intellij.adaptor.lexer.ReparseableRuleIElementType;
+import org.antlr.intellij.adaptor.lexer.TokenIElementType;
+import org.antlr.intellij.adaptor.parser.ANTLRParseStatistics;
+import org.antlr.intellij.adaptor.parser.ANTLRParserAdaptor;
+import org.antlr.intellij.adaptor.parser.ChainRuleCollapsePolicy;
+import org.antlr.intellij.adaptor.parser.ErrorStrategyAdaptor;
+import org.antlr.intellij.adaptor.parser.ExpectedTokensCache;
+import org.antlr.intellij.adaptor.parser.ParseMode;
+import org.antlr.intellij.adaptor.parser.SizeThreshold;
+import org.antlr.intellij.adaptor.parser.SyntaxError;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorIndex;
+import org.antlr.intellij.adaptor.parser.SyntaxErrorListener;
+import org.antlr.intellij.adaptor.psi.Trees;
+import org.antlr.intellij.adaptor.xpath.XPath;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class ExprParserTest extends ParsingTestCase {
+	private static final String PROGRAM =
+		"// globals\n" +
+		"var x = 1 + 2 * 3 - 4;\n" +
+		"fun f() {\n" +
+		"    var y = (x + 1) * x / 2;\n" +
+		"    { return y - x - 1; }\n" +
+		"}\n";
+
+	private static final String PROGRAM_WITH_ERRORS =
+		"var x = 1 + ;\n" +
+		"fun f() {\n" +
+		"    var = y * ;\n" +
+		"    return x x;\n" +
+		"}\n" +
+		"var z = (1 + 2;\n";
+
+	public ExprParserTest() {
+		super("expr", "expr", true, new ExprParserDefinition());
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		ExprParserDefinition.resetOptions();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		try {
+			ExprParserDefinition.resetOptions();
+		}
+		finally {
+			super.tearDown();
+		}
+	}
+
+	public void testStreamingMatchesTreeWalk() {
+		String walked = parseToText(PROGRAM);
+		ExprParserDefinition.streaming = true;
+		assertEquals(walked, parseToText(PROGRAM));
+	}
+
+	public void testStreamingMatchesTreeWalkWithErrors() {
+		String walked = parseToText(PROGRAM_WITH_ERRORS);
+		ExprParserDefinition.streaming = true;
+		assertEquals(walked, parseToText(PROGRAM_WITH_ERRORS));
+	}
+
+	public void testLeftRecursiveNesting() {
+		checkLeftRecursiveNesting();
+	}
+
+	public void testStreamingLeftRecursiveNesting() {
+		ExprParserDefinition.streaming = true;
+		checkLeftRecursiveNesting();
+	}
+
+	public void testTwoStageWithoutErrors() {
+		String singleStage = parseToText(PROGRAM);
+		ExprParserDefinition.twoStage = true;
+		ANTLRParseStatistics statistics = ANTLRParseStatistics.getInstance(ExprLanguage.INSTANCE);
+		long fallbacks = statistics.getFallbackCount();
+		assertEquals(singleStage, parseToText(PROGRAM));
+		assertEquals(fallbacks, statistics.getFallbackCount());
+	}
+
+	public void testTwoStageFallsBackFromStart() {
+		checkTwoStageFallback();
+	}
+
+	public void testStreamingTwoStageFallsBackFromStart() {
+		ExprParserDefinition.streaming = true;
+		checkTwoStageFallback();
+	}
+
+	/** The SLL stage bails out in the last declaration; the LL stage must
+	 *  still parse the whole file, not resume where the SLL stage stopped.
+	 */
+	private void checkTwoStageFallback() {
+		String text = PROGRAM + "var z = (1 + 2;\n";
+		String singleStage = parseToText(text);
+		ExprParserDefinition.twoStage = true;
+		ANTLRParseStatistics statistics = ANTLRParseStatistics.getInstance(ExprLanguage.INSTANCE);
+		long fallbacks = statistics.getFallbackCount();
+		PsiFile file = parse(text);
+		assertEquals(fallbacks + 1, statistics.getFallbackCount());
+		assertEquals(singleStage, toParseTreeText(file, false, false));
+		ASTNode first = findRule(file.getNode(), ExprParser.RULE_decl);
+		assertNotNull(first);
+		assertEquals(text.indexOf("var"), first.getStartOffset());
+		assertEquals(3, getRuleChildren(findRule(file.getNode(), ExprParser.RULE_file), ExprParser.RULE_decl).size());
+	}
+
+	public void testXPathFindsReparseableRules() {
+		PsiFile file = parse(PROGRAM);
+		Collection<? extends PsiElement> blocks = XPath.findAll(ExprLanguage.INSTANCE, file, "//block");
+		assertEquals(1, blocks.size());
+		PsiElement block = blocks.iterator().next();
+		assertInstanceOf(block.getNode().getElementType(), ReparseableRuleIElementType.class);
+		assertEquals("{ return y - x - 1; }", block.getText());
+
+		Collection<? extends PsiElement> stats = XPath.findAll(ExprLanguage.INSTANCE, file, "//block/stat");
+		assertEquals(1, stats.size());
+		assertEquals("return y - x - 1;", stats.iterator().next().getText());
+
+		assertEquals(1, Trees.findAllRuleNodes(file, ExprParser.RULE_block).size());
+	}
+
+	public void testXPathFindsLazyRules() {
+		// not ensureParsed(), which would expand every chameleon
+		PsiFile file = createPsiFile("test", PROGRAM);
+		ASTNode body = findRule(file.getNode(), ExprParser.RULE_body);
+		assertInstanceOf(body, LazyParseableElement.class);
+		assertFalse(((LazyParseableElement) body).isParsed());
+
+		// the chameleon itself is found without parsing it
+		Collection<? extends PsiElement> bodies = XPath.findAll(ExprLanguage.INSTANCE, file, "/file/decl/body");
+		assertEquals(1, bodies.size());
+		assertSame(body, bodies.iterator().next().getNode());
+		assertFalse(((LazyParseableElement) body).isParsed());
+
+		// looking inside parses it
+		Collection<? extends PsiElement> stats = XPath.findAll(ExprLanguage.INSTANCE, file, "/file/decl/body/stat");
+		assertEquals(2, stats.size());
+		assertTrue(((LazyParseableElement) body).isParsed());
+		assertEquals(1, XPath.findAll(ExprLanguage.INSTANCE, file, "//body/stat/nested/block").size());
+		assertEquals(1, Trees.findAllRuleNodes(file, ExprParser.RULE_body).size());
+	}
+
+	/** The lazy body is parsed through the invoker it was defined with. */
+	public void testLazyRuleParsedByInvoker() {
+		PsiFile file = createPsiFile("test", PROGRAM);
+		ASTNode body = findRule(file.getNode(), ExprParser.RULE_body);
+		int parses = ExprParserDefinition.bodyParses.get();
+		assertNotNull(body.getFirstChildNode());
+		assertEquals(parses + 1, ExprParserDefinition.bodyParses.get());
+		assertEquals(2, getRuleChildren(body, ExprParser.RULE_stat).size());
+	}
+
+	/** A rule without an invoker or a method of its name fails naming it. */
+	public void testMissingRuleMethodNamesRule() {
+		ExprParser parser = new ExprParser(null) {
+			@Override
+			public String[] getRuleNames() {
+				String[] ruleNames = super.getRuleNames().clone();
+				ruleNames[RULE_stat] = "statement";
+				return ruleNames;
+			}
+		};
+		IElementType stat = new ReparseableRuleIElementType(ExprParser.RULE_stat, "stat", ExprLanguage.INSTANCE);
+		ANTLRParserAdaptor adaptor = new ANTLRParserAdaptor(ExprLanguage.INSTANCE, parser) {
+			@Override
+			protected ParseTree parse(Parser parser, IElementType root) {
+				return ((ExprParser) parser).file();
+			}
+		};
+		try {
+			adaptor.parse(stat, PsiBuilderFactory.getInstance().createBuilder(
+				new ExprParserDefinition(), new ExprParserDefinition().createLexer(null), "x;"));
+			fail();
+		}
+		catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("rule statement"));
+		}
+	}
+
+	public void testChunkedMatchesSequential() {
+		checkChunked(PROGRAM, 2);
+	}
+
+	public void testChunkedMatchesSequentialWithErrors() {
+		checkChunked(PROGRAM_WITH_ERRORS, 3);
+	}
+
+	/** Split before each top-level 'fun' and 'var', but not the nested one. */
+	private void checkChunked(String text, int chunks) {
+		String sequential = parseToText(text);
+		ExprParserDefinition.chunked = true;
+		int parses = ExprParserDefinition.startRuleParses.get();
+		PsiFile file = parse(text);
+		assertEquals(chunks, ExprParserDefinition.startRuleParses.get() - parses);
+		assertEquals(sequential, toParseTreeText(file, false, false));
+		assertEquals(chunks, getRuleChildren(findRule(file.getNode(), ExprParser.RULE_file), ExprParser.RULE_decl).size());
+	}
+
+	public void testChainPolicies() {
+		ChainRuleCollapsePolicy of = ChainRuleCollapsePolicy.of(ExprParser.RULE_expr);
+		assertTrue(of.shouldCollapse(ExprParser.RULE_expr));
+		assertFalse(of.shouldCollapse(ExprParser.RULE_stat));
+		ChainRuleCollapsePolicy all = ChainRuleCollapsePolicy.all(ExprParser.RULE_expr);
+		assertFalse(all.shouldCollapse(ExprParser.RULE_expr));
+		assertTrue(all.shouldCollapse(ExprParser.RULE_stat));
+		assertFalse(ChainRuleCollapsePolicy.NONE.shouldCollapse(ExprParser.RULE_expr));
+	}
+
+	private static final String CHAINS = "var x = a * (b);\nfun f() { { c; } }\n";
+
+	public void testNoChainsCollapsedByDefault() {
+		assertEquals(
+			"file(decl(expr(expr(primary),expr(primary(expr(primary))))),decl(body(stat(nested(block(stat(expr(primary))))))))",
+			dumpRules(parse(CHAINS).getNode()));
+	}
+
+	public void testCollapseChainsOfSomeRules() {
+		ExprParserDefinition.chainRules = ChainRuleCollapsePolicy.of(ExprParser.RULE_expr);
+		assertEquals(
+			"file(decl(expr(primary,primary(primary))),decl(body(stat(nested(block(stat(primary)))))))",
+			dumpRules(parse(CHAINS).getNode()));
+	}
+
+	/** stat is dropped, but nested, though a chain link, is self-contained. */
+	public void testCollapseChainsOfAllButKeptRules() {
+		ExprParserDefinition.chainRules = ChainRuleCollapsePolicy.all(ExprParser.RULE_expr);
+		assertEquals(
+			"file(decl(expr(expr(primary),expr(primary(expr(primary))))),decl(body(nested(block(stat(expr(primary)))))))",
+			dumpRules(parse(CHAINS).getNode()));
+	}
+
+	/** Streaming contexts have no children, so nothing is a chain link. */
+	public void testStreamingIgnoresChainPolicy() {
+		ExprParserDefinition.streaming = true;
+		String none = dumpRules(parse(CHAINS).getNode());
+		ExprParserDefinition.chainRules = ChainRuleCollapsePolicy.all();
+		assertEquals(none, dumpRules(parse(CHAINS).getNode()));
+	}
+
+	/** Rule nodes below node as name(children), leaving out tokens. */
+	private static String dumpRules(ASTNode node) {
+		List<String> parts = new ArrayList<>();
+		for (ASTNode child = node.getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			String inner = dumpRules(child);
+			int ruleIndex = getRuleIndex(child);
+			if ( ruleIndex>=0 ) {
+				parts.add(ExprParser.ruleNames[ruleIndex] + (inner.isEmpty() ? "" : "(" + inner + ")"));
+			}
+			else if ( !inner.isEmpty() ) {
+				parts.add(inner);
+			}
+		}
+		return String.join(",", parts);
+	}
+
+	public void testErrorKindsFromStrategyCallbacks() {
+		SyntaxError missing = parseWithErrors("var x = 1 + 2").get(0);
+		assertEquals(SyntaxError.Kind.MISSING_TOKEN, missing.getKind());
+		assertEquals(Token.EOF, missing.getOffendingSymbol().getType());
+
+		SyntaxError extraneous = parseWithErrors("var x = 1;;").get(0);
+		assertEquals(SyntaxError.Kind.EXTRANEOUS_TOKEN, extraneous.getKind());
+		assertEquals(";", extraneous.getOffendingSymbol().getText());
+		assertEquals(10, extraneous.getStartOffset());
+
+		SyntaxError mismatch = parseWithErrors("var x = ;").get(0);
+		assertNotSame(SyntaxError.Kind.MISSING_TOKEN, mismatch.getKind());
+		assertNotSame(SyntaxError.Kind.EXTRANEOUS_TOKEN, mismatch.getKind());
+		assertNotSame(SyntaxError.Kind.OTHER, mismatch.getKind());
+	}
+
+	/** Messages formatted on first use are those ANTLR reported. */
+	public void testFormattedMessagesMatchReported() {
+		List<String> reported = new ArrayList<>();
+		List<SyntaxError> errors = new ArrayList<>();
+		ExprParser parser = newParser(PROGRAM_WITH_ERRORS + "var w = 1;;\nvar v = 2\n");
+		parser.addErrorListener(new BaseErrorListener() {
+			@Override
+			public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+			                        int line, int charPositionInLine, String msg, RecognitionException e)
+			{
+				reported.add(msg);
+				errors.add(SyntaxError.fromReport(recognizer, (Token) offendingSymbol, line, charPositionInLine, msg, e));
+			}
+		});
+		parser.file();
+		assertTrue(reported.size() > 3);
+		for (int i = 0; i < errors.size(); i++) {
+			assertEquals(reported.get(i), errors.get(i).getMessage());
+			assertNull(errors.get(i).getRecognizer());
+			assertNull(errors.get(i).getException());
+		}
+	}
+
+	public void testErrorsDontReferenceParser() {
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		WeakReference<ExprParser> parser = parseWithErrors(PROGRAM_WITH_ERRORS, listener);
+		List<SyntaxError> errors = listener.getSyntaxErrors();
+		for (int i = 0; i < 20 && parser.get()!=null; i++) {
+			System.gc();
+		}
+		assertNull(parser.get());
+		assertFalse(errors.isEmpty());
+		assertEquals(errors, listener.getSyntaxErrors());
+	}
+
+	/** Keep nothing but the listener of the parse. */
+	private static WeakReference<ExprParser> parseWithErrors(String text, SyntaxErrorListener listener) {
+		ExprParser parser = newParser(text);
+		parser.addErrorListener(listener);
+		parser.file();
+		parser.removeErrorListeners();
+		return new WeakReference<>(parser);
+	}
+
+	/** The same errors in different rule invocation stacks, so that a
+	 *  cache keyed by the ATN state alone would give the wrong sets.
+	 */
+	private static final String REPEATED_ERRORS =
+		"var a = 1 + ;\n" +
+		"var b = 2 + ;\n" +
+		"var c = (1 2);\n" +
+		"var d = 1 2;\n" +
+		"fun f() { return (3 4); return 3 4; { 5 6; } }\n" +
+		"var e = ((7 8));\n";
+
+	public void testExpectedTokensCacheGivesSameErrors() {
+		ExpectedTokensCache cache = new ExpectedTokensCache() {};
+		List<String> uncached = describeErrors(REPEATED_ERRORS, null);
+		assertTrue(uncached.size() > 6);
+		assertEquals(uncached, describeErrors(REPEATED_ERRORS, cache));
+		assertTrue(cache.getHitCount() > 0);
+		assertTrue(cache.getSize() > 0);
+
+		// a second parse finds every set cached
+		long misses = cache.getMissCount();
+		long hits = cache.getHitCount();
+		assertEquals(uncached, describeErrors(REPEATED_ERRORS, cache));
+		assertEquals(misses, cache.getMissCount());
+		assertTrue(cache.getHitCount() > hits);
+	}
+
+	/** Each error's kind, offset, expected tokens and message, then the
+	 *  parse tree, which shows how the parser recovered.
+	 */
+	private static List<String> describeErrors(String text, ExpectedTokensCache cache) {
+		ExprParser parser = newParser(text);
+		parser.setErrorHandler(new ErrorStrategyAdaptor(Integer.MAX_VALUE, Integer.MAX_VALUE, cache));
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		parser.addErrorListener(listener);
+		String tree = parser.file().toStringTree(parser);
+		List<String> errors = new ArrayList<>();
+		for (SyntaxError error : listener.getSyntaxErrors()) {
+			errors.add(error.getKind() + "@" + error.getStartOffset() + " " + error.getExpectedTokens() + " " + error.getMessage());
+		}
+		errors.add(tree);
+		return errors;
+	}
+
+	public void testErrorsPlacedAtTheirTokens() {
+		checkErrorPlacement();
+	}
+
+	public void testStreamingErrorsPlacedAtTheirTokens() {
+		ExprParserDefinition.streaming = true;
+		checkErrorPlacement();
+	}
+
+	/** Every offset with a syntax error gets one error element there with
+	 *  the first error's message. There are no function bodies, which are
+	 *  lazy and report their own errors when parsed on their own.
+	 */
+	private void checkErrorPlacement() {
+		String text =
+			"var x = 1 + ;\n" +
+			"var = y * ;\n" +
+			"var z = (1 + 2;\n" +
+			"var w = 1;;\n";
+		Map<Integer, String> expected = new TreeMap<>();
+		for (SyntaxError error : parseWithErrors(text)) {
+			expected.putIfAbsent(error.getStartOffset(), error.getMessage());
+		}
+		assertTrue(expected.size() > 1);
+
+		Map<Integer, String> placed = new TreeMap<>();
+		for (PsiErrorElement element : PsiTreeUtil.collectElementsOfType(parse(text), PsiErrorElement.class)) {
+			String message = element.getErrorDescription().trim();
+			if ( !message.startsWith("<missing") ) {
+				assertNull(placed.put(element.getTextRange().getStartOffset(), message));
+			}
+		}
+		assertEquals(expected, placed);
+	}
+
+	public void testErrorIndexKeepsErrorsAtSameOffset() {
+		SyntaxErrorIndex index = new SyntaxErrorIndex();
+		SyntaxError late = newError(SyntaxError.Kind.OTHER, 9);
+		SyntaxError first = newError(SyntaxError.Kind.MISSING_TOKEN, 4);
+		SyntaxError second = newError(SyntaxError.Kind.EXTRANEOUS_TOKEN, 4);
+		SyntaxError early = newError(SyntaxError.Kind.OTHER, 0);
+		index.add(late);
+		index.add(first);
+		index.add(second);
+		index.add(early);
+
+		assertEquals(Arrays.asList(early, first, second, late), index.toList());
+		assertSame(first, index.getFirstAt(4));
+		assertNull(index.getFirstAt(5));
+		assertEquals(3, index.ceilingIndex(5));
+		assertEquals(4, index.ceilingIndex(10));
+	}
+
+	private static SyntaxError newError(SyntaxError.Kind kind, int offset) {
+		return new SyntaxError(kind, offset, offset, 1, offset, ExprParser.ID, "a", null, ExprParser.VOCABULARY);
+	}
+
+	private static List<SyntaxError> parseWithErrors(String text) {
+		ExprParser parser = newParser(text);
+		SyntaxErrorListener listener = new SyntaxErrorListener();
+		parser.addErrorListener(listener);
+		parser.file();
+		List<SyntaxError> errors = listener.getSyntaxErrors();
+		assertFalse(errors.isEmpty());
+		return errors;
+	}
+
+	private static ExprParser newParser(String text) {
+		ExprParser parser = new ExprParser(new CommonTokenStream(new ExprLexer(CharStreams.fromString(text))));
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new ErrorStrategyAdaptor());
+		return parser;
+	}
+
+	public void testEvictionKeepsCacheUnderCap() {
+		checkEviction(ANTLRRecognizerRuntime.EvictionPolicy.RESET_LARGEST);
+	}
+
+	public void testEvictionResetsAll() {
+		checkEviction(ANTLRRecognizerRuntime.EvictionPolicy.RESET_ALL);
+	}
+
+	/** A parse that ends above the cap evicts down to half of it, and
+	 *  parses after that still build the same PSI. No function bodies,
+	 *  so nothing is lexed or parsed after the file's parse ends.
+	 */
+	private void checkEviction(ANTLRRecognizerRuntime.EvictionPolicy policy) {
+		String text = "var x = 1 + 2 * 3 - 4;\nvar y = (x + 1) * x / 2;\nvar z = (1 + ;\n";
+		ANTLRRecognizerRuntime runtime = ANTLRRecognizerRuntime.getInstance(ExprLanguage.INSTANCE);
+		try {
+			String expected = parseToText(text);
+			int warm = runtime.getCachedStateCount();
+			assertTrue(warm > 4);
+			runtime.setEvictionPolicy(policy);
+			runtime.setMaxCachedStates(warm / 2);
+			long evictions = runtime.getEvictionCount();
+
+			assertEquals(expected, parseToText(text));
+			assertEquals(evictions + 1, runtime.getEvictionCount());
+			assertTrue(runtime.getCachedStateCount() <= warm / 4);
+			if ( policy==ANTLRRecognizerRuntime.EvictionPolicy.RESET_ALL ) {
+				assertEquals(0, runtime.getCachedStateCount());
+			}
+			assertEquals(expected, parseToText(text));
+			assertEquals(expected, parseToText(text));
+		}
+		finally {
+			runtime.setMaxCachedStates(Integer.MAX_VALUE);
+			runtime.setEvictionPolicy(ANTLRRecognizerRuntime.EvictionPolicy.RESET_LARGEST);
+		}
+	}
+
+	/** A lexer keeps lexing on the DFA it started with, and only picks up
+	 *  the new one when it is started again.
+	 */
+	public void testEvictionDoesNotDisturbRunningLexer() {
+		List<IElementType> expected = lexTokenTypes(PROGRAM);
+		ANTLRRecognizerRuntime runtime = ANTLRRecognizerRuntime.getInstance(ExprLanguage.INSTANCE);
+		ANTLRLexerAdaptor lexer = (ANTLRLexerAdaptor) new ExprParserDefinition().createLexer(null);
+		lexer.start(PROGRAM);
+		List<IElementType> types = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			types.add(lexer.getTokenType());
+			lexer.advance();
+		}
+		runtime.setEvictionPolicy(ANTLRRecognizerRuntime.EvictionPolicy.RESET_ALL);
+		try {
+			runtime.evict();
+		}
+		finally {
+			runtime.setEvictionPolicy(ANTLRRecognizerRuntime.EvictionPolicy.RESET_LARGEST);
+		}
+		while ( lexer.getTokenType()!=null ) {
+			types.add(lexer.getTokenType());
+			lexer.advance();
+		}
+		assertEquals(expected, types);
+		// lexing from the start again rebinds to the fresh DFA
+		assertEquals(0, runtime.getCachedStateCount());
+		assertEquals(expected, lexTokenTypes(PROGRAM));
+		assertTrue(runtime.getCachedStateCount() > 0);
+	}
+
+	/** Batch lexing recycles one token yet yields what advance() does,
+	 *  off-channel and type()-remapped tokens included.
+	 */
+	public void testTokenizeMatchesAdvance() {
+		for (String text : new String[]{PROGRAM, OFF_CHANNEL}) {
+			ANTLRLexerAdaptor lexer = (ANTLRLexerAdaptor) new ExprParserDefinition().createLexer(null);
+			List<String> expected = new ArrayList<>();
+			lexer.start(text);
+			while ( lexer.getTokenType()!=null ) {
+				expected.add(((TokenIElementType) lexer.getTokenType()).getANTLRTokenType() + "@" +
+							 lexer.getTokenStart() + ":" + lexer.getTokenEnd() + "/" + lexer.getState());
+				lexer.advance();
+			}
+			ANTLRTokenBatch batch = new ANTLRTokenBatch();
+			lexer.tokenize(text, 0, text.length(), 0, batch);
+			List<String> actual = new ArrayList<>();
+			for (int i = 0; i < batch.size(); i++) {
+				actual.add(batch.getTokenType(i) + "@" +
+						   batch.getTokenStart(i) + ":" + batch.getTokenEnd(i) + "/" + batch.getState(i));
+			}
+			assertEquals(expected, actual);
+		}
+	}
+
+	/** One adaptor borrowing parsers from the pool parses on several
+	 *  threads at once, and no parse sees another's input or errors.
+	 */
+	public void testPooledAdaptorParsesConcurrently() throws Exception {
+		ANTLRParserAdaptor adaptor = new ANTLRParserAdaptor(ExprLanguage.INSTANCE) {
+			@Override
+			protected ParseTree parse(Parser parser, IElementType root) {
+				return ((ExprParser) parser).file();
+			}
+		};
+		ANTLRRecognizerPool<Parser> pool = ANTLRRecognizerRuntime.getInstance(ExprLanguage.INSTANCE).getParserPool();
+		String[] texts = {PROGRAM, PROGRAM_WITH_ERRORS};
+		String[] expected = new String[texts.length];
+		for (int i = 0; i < texts.length; i++) {
+			expected[i] = dumpEagerRules(parseWith(adaptor, texts[i]));
+		}
+		assertTrue(expected[0].contains("decl"));
+		assertFalse(expected[0].contains("ERROR"));
+		assertTrue(expected[1].contains("ERROR"));
+
+		long borrows = pool.getBorrowCount();
+		int parses = 64;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < parses; i++) {
+				String text = texts[i % texts.length];
+				results.add(executor.submit(() -> dumpEagerRules(parseWith(adaptor, text))));
+			}
+			for (int i = 0; i < parses; i++) {
+				assertEquals(expected[i % texts.length], results.get(i).get());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertEquals(borrows + parses, pool.getBorrowCount());
+		assertTrue(pool.getIdleCount() <= pool.getMaxIdle());
+	}
+
+	private static ASTNode parseWith(ANTLRParserAdaptor adaptor, String text) {
+		ExprParserDefinition definition = new ExprParserDefinition();
+		PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(definition, definition.createLexer(null), text);
+		return adaptor.parse(definition.getFileNodeType(), builder);
+	}
+
+	/** Like {@link #dumpRules} with error nodes, but without parsing lazy
+	 *  elements, which needs a file.
+	 */
+	private static String dumpEagerRules(ASTNode node) {
+		List<String> parts = new ArrayList<>();
+		for (ASTNode child = node.getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			String inner = child instanceof LazyParseableElement ? "" : dumpEagerRules(child);
+			int ruleIndex = getRuleIndex(child);
+			if ( ruleIndex>=0 ) {
+				parts.add(ExprParser.ruleNames[ruleIndex] + (inner.isEmpty() ? "" : "(" + inner + ")"));
+			}
+			else if ( child.getElementType()==TokenType.ERROR_ELEMENT ) {
+				parts.add("ERROR");
+			}
+			else if ( !inner.isEmpty() ) {
+				parts.add(inner);
+			}
+		}
+		return String.join(",", parts);
+	}
+
+	private static final String OFF_CHANNEL =
+		"/** doc */ var x = 1; # note\n" +
+		"var y = x * 2;\n";
+
+	public void testTokenChannelsFromLexerATN() {
+		int[] channels = PSIElementTypeFactory.createTokenChannels(ExprLexer._ATN, ExprLexer.VOCABULARY.getMaxTokenType());
+		assertEquals(2, channels[ExprLexer.DOC]);
+		assertEquals(Token.HIDDEN_CHANNEL, channels[ExprLexer.WS]);
+		// both rules of the type agree
+		assertEquals(Token.HIDDEN_CHANNEL, channels[ExprLexer.COMMENT]);
+		// SEMI's rule and ESCAPED_SEMI's type(SEMI) disagree
+		assertEquals(Token.DEFAULT_CHANNEL, channels[ExprLexer.SEMI]);
+		assertEquals(Token.DEFAULT_CHANNEL, channels[ExprLexer.ID]);
+
+		List<TokenIElementType> types = PSIElementTypeFactory.getTokenIElementTypes(ExprLanguage.INSTANCE);
+		assertEquals(2, types.get(ExprLexer.DOC).getChannel());
+		assertTrue(types.get(ExprLexer.DOC).isHidden());
+		assertFalse(types.get(ExprLexer.SEMI).isHidden());
+
+		TokenSet hidden = PSIElementTypeFactory.createHiddenTokenSet(ExprLanguage.INSTANCE);
+		assertEquals(3, hidden.getTypes().length);
+		assertTrue(hidden.contains(types.get(ExprLexer.DOC)));
+		assertTrue(hidden.contains(types.get(ExprLexer.COMMENT)));
+		assertTrue(hidden.contains(types.get(ExprLexer.WS)));
+		assertEquals(Arrays.asList(types.get(ExprLexer.DOC)),
+					 Arrays.asList(PSIElementTypeFactory.createChannelTokenSet(ExprLanguage.INSTANCE, 2).getTypes()));
+	}
+
+	public void testOffChannelTokensParseWithoutErrors() {
+		PsiFile file = parse(OFF_CHANNEL);
+		assertEmpty(PsiTreeUtil.collectElementsOfType(file, PsiErrorElement.class));
+		List<String> comments = new ArrayList<>();
+		for (PsiComment comment : PsiTreeUtil.collectElementsOfType(file, PsiComment.class)) {
+			comments.add(comment.getText());
+		}
+		assertEquals(Arrays.asList("/** doc */", "# note"), comments);
+	}
+
+	/** The stream hides off-channel types by their channel even if it is
+	 *  given no hidden set.
+	 */
+	public void testTokenStreamHidesOffChannelTokens() {
+		PSITokenStream tokens = new PSITokenStream(createBuilder(new ExprParserDefinition()), TokenSet.EMPTY);
+		assertEquals(visibleTokenTypes(), readTokenTypes(tokens));
+	}
+
+	/** A builder that doesn't skip DOC passes it on to the token source,
+	 *  which keeps its channel so a CommonTokenStream hides it.
+	 */
+	public void testTokenSourceKeepsChannels() {
+		ExprParserDefinition definition = new ExprParserDefinition() {
+			@NotNull
+			@Override
+			public TokenSet getCommentTokens() {
+				return PSIElementTypeFactory.createChannelTokenSet(ExprLanguage.INSTANCE, Token.HIDDEN_CHANNEL);
+			}
+		};
+		PsiBuilder builder = createBuilder(definition);
+		List<Token> all = new ArrayList<>();
+		PSITokenSource source = new PSITokenSource(builder);
+		for (Token t = source.nextToken(); t.getType()!=Token.EOF; t = source.nextToken()) {
+			all.add(t);
+		}
+		assertEquals(ExprLexer.DOC, all.get(0).getType());
+		assertEquals(2, all.get(0).getChannel());
+
+		CommonTokenStream tokens = new CommonTokenStream(new PSITokenSource(createBuilder(definition)));
+		assertEquals(visibleTokenTypes(), readTokenTypes(tokens));
+	}
+
+	public void testRawTokenCopyMatchesBuilder() {
+		PsiBuilder builder = createBuilder(new ExprParserDefinition());
+		builder.advanceLexer();
+		PSIRawTokens rawTokens = PSIRawTokens.copy(builder);
+		int base = builder.rawTokenIndex();
+		assertEquals(base, rawTokens.getStartRawIndex());
+		for (int step = 0; step <= rawTokens.size(); step++) {
+			assertEquals(builder.rawLookup(step), rawTokens.getTokenType(base + step));
+			assertEquals(builder.rawTokenTypeStart(step), rawTokens.getTokenStart(base + step));
+		}
+		assertNull(rawTokens.getTokenType(rawTokens.getEndRawIndex()));
+		assertEquals(OFF_CHANNEL.length(), rawTokens.getTokenStart(rawTokens.getEndRawIndex() + 1));
+
+		List<String> expected = readTokens(new PSITokenStream(builder, ExprParserDefinition.COMMENTS));
+		PSITokenStream copied = new PSITokenStream(builder, ExprParserDefinition.COMMENTS, rawTokens,
+												   base, Integer.MAX_VALUE);
+		assertEquals(expected, readTokens(copied));
+	}
+
+	/** A stream over a copy reads the same tokens on another thread while
+	 *  the builder's owner moves on.
+	 */
+	public void testRawTokenCopyIsReadOffThread() throws Exception {
+		PsiBuilder builder = createBuilder(new ExprParserDefinition());
+		List<String> expected = readTokens(new PSITokenStream(builder, ExprParserDefinition.COMMENTS));
+		PSIRawTokens rawTokens = PSIRawTokens.copy(builder);
+		PSITokenStream tokens = new PSITokenStream(builder, ExprParserDefinition.COMMENTS, rawTokens,
+												   rawTokens.getStartRawIndex(), rawTokens.getEndRawIndex());
+		while ( !builder.eof() ) {
+			builder.advanceLexer();
+		}
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertEquals(expected, executor.submit(() -> readTokens(tokens)).get());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testChunksParseOffTheCommonPool() {
+		ForkJoinPool[] pool = new ForkJoinPool[1];
+		new ANTLRParserAdaptor(ExprLanguage.INSTANCE) {
+			{
+				pool[0] = getChunkPool();
+			}
+
+			@Override
+			protected ParseTree parse(Parser parser, IElementType root) {
+				return ((ExprParser) parser).file();
+			}
+		};
+		assertNotSame(ForkJoinPool.commonPool(), pool[0]);
+		assertTrue(pool[0].getParallelism() <= Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	/** Tokens as "type@start:stop", up to EOF. */
+	private static List<String> readTokens(TokenStream tokens) {
+		List<String> read = new ArrayList<>();
+		for (Token t = tokens.LT(1); ; t = tokens.LT(1)) {
+			read.add(t.getType() + "@" + t.getStartIndex() + ":" + t.getStopIndex());
+			if ( t.getType()==Token.EOF ) return read;
+			tokens.consume();
+		}
+	}
+
+	private static List<Integer> visibleTokenTypes() {
+		ExprLexer lexer = new ExprLexer(CharStreams.fromString(OFF_CHANNEL));
+		List<Integer> types = new ArrayList<>();
+		for (Token t = lexer.nextToken(); t.getType()!=Token.EOF; t = lexer.nextToken()) {
+			if ( t.getChannel()==Token.DEFAULT_CHANNEL ) {
+				types.add(t.getType());
+			}
+		}
+		return types;
+	}
+
+	private static List<Integer> readTokenTypes(TokenStream tokens) {
+		List<Integer> types = new ArrayList<>();
+		while ( tokens.LA(1)!=Token.EOF ) {
+			types.add(tokens.LA(1));
+			tokens.consume();
+		}
+		return types;
+	}
+
+	private static PsiBuilder createBuilder(ExprParserDefinition definition) {
+		return PsiBuilderFactory.getInstance().createBuilder(definition, definition.createLexer(null), OFF_CHANNEL);
+	}
+
+	public void testFullParseByDefault() {
+		PsiFile file = parse(PROGRAM);
+		assertEquals(ParseMode.FULL, ANTLRParserAdaptor.getParseMode(file.getNode()));
+		assertNotNull(findRule(file.getNode(), ExprParser.RULE_decl));
+	}
+
+	public void testFlatTokensAboveThreshold() {
+		ExprParserDefinition.flatTokens = new SizeThreshold(PROGRAM.length() - 1, Integer.MAX_VALUE);
+		PsiFile file = parse(PROGRAM);
+		assertEquals(ParseMode.FLAT_TOKENS, ANTLRParserAdaptor.getParseMode(file.getNode()));
+
+		List<IElementType> types = new ArrayList<>();
+		for (ASTNode child = file.getNode().getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			assertNull(child.getFirstChildNode());
+			types.add(child.getElementType());
+		}
+		assertEquals(lexTokenTypes(PROGRAM), types);
+	}
+
+	public void testFlatTokensAboveTokenThreshold() {
+		ExprParserDefinition.flatTokens = new SizeThreshold(Integer.MAX_VALUE, 10);
+		assertEquals(ParseMode.FLAT_TOKENS, ANTLRParserAdaptor.getParseMode(parse(PROGRAM).getNode()));
+		assertEquals(ParseMode.FULL, ANTLRParserAdaptor.getParseMode(parse("var x = 1;").getNode()));
+	}
+
+	public void testLineBlocksAboveThreshold() {
+		ExprParserDefinition.flatTokens = new SizeThreshold(10, 10);
+		ExprParserDefinition.lineBlocks = new SizeThreshold(PROGRAM.length() - 1, Integer.MAX_VALUE);
+		ExprParserDefinition.linesPerBlock = 2;
+		PsiFile file = parse(PROGRAM);
+		assertEquals(ParseMode.LINE_BLOCKS, ANTLRParserAdaptor.getParseMode(file.getNode()));
+
+		// the leading comment binds outside the first block, which starts at 'var'
+		List<String> blocks = new ArrayList<>();
+		for (ASTNode child = file.getNode().getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			assertNull(child.getFirstChildNode());
+			if ( child.getElementType()==PlainTextTokenTypes.PLAIN_TEXT ) {
+				blocks.add(child.getText());
+			}
+			else {
+				assertTrue(child.getElementType().toString(),
+						   ExprParserDefinition.WHITESPACE.contains(child.getElementType()) ||
+						   ExprParserDefinition.COMMENTS.contains(child.getElementType()));
+			}
+		}
+		assertEquals(Arrays.asList(
+			"var x = 1 + 2 * 3 - 4;\nfun f() {",
+			"var y = (x + 1) * x / 2;\n    { return y - x - 1; }",
+			"}"), blocks);
+	}
+
+	private static List<IElementType> lexTokenTypes(String text) {
+		Lexer lexer = new ExprParserDefinition().createLexer(null);
+		lexer.start(text);
+		List<IElementType> types = new ArrayList<>();
+		while ( lexer.getTokenType()!=null ) {
+			types.add(lexer.getTokenType());
+			lexer.advance();
+		}
+		return types;
+	}
+
+	/** Binary operators nest to the left, and '*' binds tighter than '-'. */
+	private void checkLeftRecursiveNesting() {
+		PsiFile file = parse("var x = a - b - c * d;");
+		ASTNode top = findRule(file.getNode(), ExprParser.RULE_expr);
+		assertNotNull(top);
+		assertEquals("a - b - c * d", top.getText());
+
+		List<ASTNode> operands = getRuleChildren(top, ExprParser.RULE_expr);
+		assertEquals(2, operands.size());
+		assertEquals("a - b", operands.get(0).getText());
+		assertEquals("c * d", operands.get(1).getText());
+
+		List<ASTNode> left = getRuleChildren(operands.get(0), ExprParser.RULE_expr);
+		assertEquals(2, left.size());
+		assertEquals("a", left.get(0).getText());
+		assertEquals("b", left.get(1).getText());
+		assertEquals(1, getRuleChildren(left.get(0), ExprParser.RULE_primary).size());
+	}
+
+	protected PsiFile parse(String text) {
+		PsiFile file = createPsiFile("test", text);
+		ensureParsed(file);
+		assertEquals(text, file.getText());
+		return file;
+	}
+
+	protected String parseToText(String text) {
+		return toParseTreeText(parse(text), false, false);
+	}
+
+	/** Return the first node of rule ruleIndex in a depth-first walk from node. */
+	protected static ASTNode findRule(ASTNode node, int ruleIndex) {
+		if ( getRuleIndex(node)==ruleIndex ) return node;
+		for (ASTNode child = node.getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			ASTNode found = findRule(child, ruleIndex);
+			if ( found!=null ) return found;
+		}
+		return null;
+	}
+
+	protected static List<ASTNode> getRuleChildren(ASTNode node, int ruleIndex) {
+		List<ASTNode> children = new ArrayList<>();
+		for (ASTNode child = node.getFirstChildNode(); child!=null; child = child.getTreeNext()) {
+			if ( getRuleIndex(child)==ruleIndex ) {
+				children.add(child);
+			}
+		}
+		return children;
+	}
+
+	protected static int getRuleIndex(ASTNode node) {
+		return Trees.getRuleIndex(node.getElementType());
+	}
+
+	@Override
+	protected String getTestDataPath() {
+		return "src/test/resources/testData";
+	}
+}
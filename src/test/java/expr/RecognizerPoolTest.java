@@ -0,0 +1,149 @@
+package expr;
+
+import com.intellij.testFramework.UsefulTestCase;
+import org.antlr.intellij.adaptor.ANTLRRecognizerPool;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
+import org.antlr.intellij.adaptor.expr.ExprLexer;
+import org.antlr.intellij.adaptor.expr.ExprParser;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecognizerPoolTest extends UsefulTestCase {
+	private ANTLRRecognizerRuntime runtime;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		runtime = ANTLRRecognizerRuntime.define(ExprLanguage.INSTANCE, ExprLexer::new, ExprParser::new);
+		runtime.getLexerPool().clear();
+		runtime.getParserPool().clear();
+	}
+
+	public void testReleasedRecognizerIsReused() {
+		AtomicInteger created = new AtomicInteger();
+		ANTLRRecognizerPool<Object> pool = new ANTLRRecognizerPool<>(() -> {
+			created.incrementAndGet();
+			return new Object();
+		}, r -> {}, 2);
+		Object first = pool.borrow();
+		pool.release(first);
+		assertSame(first, pool.borrow());
+		assertEquals(1, created.get());
+		assertEquals(2, pool.getBorrowCount());
+		assertEquals(1, pool.getCreationCount());
+		assertEquals(0.5, pool.getHitRate(), 1e-9);
+	}
+
+	public void testMaxIdleBoundsPool() {
+		List<Object> reset = new ArrayList<>();
+		ANTLRRecognizerPool<Object> pool = new ANTLRRecognizerPool<>(Object::new, reset::add, 2);
+		assertEquals(0.0, pool.getHitRate(), 1e-9);
+		List<Object> borrowed = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			borrowed.add(pool.borrow());
+		}
+		borrowed.forEach(pool::release);
+		// every released recognizer is reset, kept or not
+		assertEquals(borrowed, reset);
+		assertEquals(2, pool.getIdleCount());
+		assertEquals(1, pool.getDiscardCount());
+		assertEquals(3, pool.getCreationCount());
+
+		// most recently released first
+		assertSame(borrowed.get(1), pool.borrow());
+		assertSame(borrowed.get(0), pool.borrow());
+		pool.borrow();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(6, pool.getBorrowCount());
+		assertEquals(4, pool.getCreationCount());
+		assertEquals(2.0 / 6, pool.getHitRate(), 1e-9);
+
+		pool.setMaxIdle(0);
+		pool.release(borrowed.get(0));
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(2, pool.getDiscardCount());
+
+		pool.setMaxIdle(1);
+		pool.release(borrowed.get(0));
+		pool.clear();
+		assertEquals(0, pool.getIdleCount());
+		assertNotSame(borrowed.get(0), pool.borrow());
+	}
+
+	public void testNegativeMaxIdleIsRejected() {
+		ANTLRRecognizerPool<Object> pool = new ANTLRRecognizerPool<>(Object::new, r -> {}, 1);
+		try {
+			pool.setMaxIdle(-1);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals(1, pool.getMaxIdle());
+		}
+	}
+
+	/** A reused parser carries nothing over from its last parse. */
+	public void testReleasedParserIsReset() {
+		Lexer lexer = runtime.borrowLexer();
+		lexer.setInputStream(CharStreams.fromString("var x = 1;"));
+		Parser parser = runtime.borrowParser();
+		parser.setTokenStream(new CommonTokenStream(lexer));
+		parser.addErrorListener(new BaseErrorListener());
+		parser.addParseListener(new EmptyListener());
+		parser.setErrorHandler(new BailErrorStrategy());
+		parser.setBuildParseTree(false);
+		((ExprParser) parser).file();
+		runtime.releaseParser(parser);
+		runtime.releaseLexer(lexer);
+
+		Lexer reusedLexer = runtime.borrowLexer();
+		Parser reused = runtime.borrowParser();
+		try {
+			assertSame(lexer, reusedLexer);
+			assertNull(reusedLexer.getInputStream());
+			assertSame(parser, reused);
+			assertNull(reused.getTokenStream());
+			assertEmpty(reused.getErrorListeners());
+			assertEmpty(reused.getParseListeners());
+			assertEquals(DefaultErrorStrategy.class, reused.getErrorHandler().getClass());
+			assertTrue(reused.getBuildParseTree());
+			// still bound to the shared cache
+			assertSame(runtime.createParser().getInterpreter().decisionToDFA,
+					   reused.getInterpreter().decisionToDFA);
+		}
+		finally {
+			runtime.releaseParser(reused);
+			runtime.releaseLexer(reusedLexer);
+		}
+	}
+
+	private static class EmptyListener implements ParseTreeListener {
+		@Override
+		public void visitTerminal(TerminalNode node) {
+		}
+
+		@Override
+		public void visitErrorNode(ErrorNode node) {
+		}
+
+		@Override
+		public void enterEveryRule(ParserRuleContext ctx) {
+		}
+
+		@Override
+		public void exitEveryRule(ParserRuleContext ctx) {
+		}
+	}
+}
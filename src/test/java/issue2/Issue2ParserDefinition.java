@@ -13,6 +13,7 @@ import com.intellij.psi.PsiFile;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.IFileElementType;
 import com.intellij.psi.tree.TokenSet;
+import org.antlr.intellij.adaptor.ANTLRRecognizerRuntime;
 import org.antlr.intellij.adaptor.issue2.Issue2Lexer;
 import org.antlr.intellij.adaptor.issue2.Issue2Parser;
 import org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor;
@@ -31,17 +32,18 @@ public class Issue2ParserDefinition implements ParserDefinition {
 			Issue2Lexer.VOCABULARY,
 			Issue2Parser.ruleNames
 		);
+		ANTLRRecognizerRuntime.define(Issue2Language.INSTANCE, Issue2Lexer::new, Issue2Parser::new);
 	}
 
 	@NotNull
 	@Override
 	public Lexer createLexer(Project project) {
-		return new ANTLRLexerAdaptor(Issue2Language.INSTANCE, new Issue2Lexer(null));
+		return new ANTLRLexerAdaptor(Issue2Language.INSTANCE, ANTLRRecognizerRuntime.getInstance(Issue2Language.INSTANCE).createLexer());
 	}
 
 	@Override
 	public PsiParser createParser(Project project) {
-		return new ANTLRParserAdaptor(Issue2Language.INSTANCE, new Issue2Parser(null)) {
+		return new ANTLRParserAdaptor(Issue2Language.INSTANCE, ANTLRRecognizerRuntime.getInstance(Issue2Language.INSTANCE).createParser()) {
 			@Override
 			protected ParseTree parse(Parser parser, IElementType root) {
 				return ((Issue2Parser) parser).block();
@@ -0,0 +1,102 @@
+package modes;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.testFramework.UsefulTestCase;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerStateRegistry;
+import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
+import org.antlr.intellij.adaptor.modes.ModesLexer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Lexer states of the Modes grammar without packed encoding, in a
+ *  registry with room for every state and in one that is full.
+ */
+public class LocalLexerStateTest extends UsefulTestCase {
+	/** Mode stacks up to five deep. */
+	private static final String TEXT = "a <b c=\"{<d e=\"{<f g=\"h\">}\">}\"> i";
+
+	private static final Language SHARED = new Language("ModesSharedStates") {};
+	private static final Language OVERFLOWED = new Language("ModesOverflowedStates") {};
+
+	static {
+		PSIElementTypeFactory.defineLanguageIElementTypes(SHARED, ModesLexer.VOCABULARY, new String[0]);
+		PSIElementTypeFactory.defineLanguageIElementTypes(OVERFLOWED, ModesLexer.VOCABULARY, new String[0]);
+		// no room beyond the default state
+		ANTLRLexerStateRegistry.getInstance(OVERFLOWED).setCapacity(1);
+	}
+
+	public void testInternedStatesAreShared() {
+		List<String> all = lex(new ANTLRLexerAdaptor(SHARED, new ModesLexer(null)), 0, 0);
+		List<String> again = lex(new ANTLRLexerAdaptor(SHARED, new ModesLexer(null)), 0, 0);
+		assertEquals(all, again);
+		for (int i = 0; i < all.size(); i++) {
+			int state = stateOf(all.get(i));
+			assertTrue(state >= 0);
+			Lexer other = new ANTLRLexerAdaptor(SHARED, new ModesLexer(null));
+			assertEquals(all.subList(i, all.size()), lex(other, startOf(all.get(i)), state));
+		}
+		assertTrue(ANTLRLexerStateRegistry.getInstance(SHARED).size() > 1);
+	}
+
+	public void testOverflowedStatesAreLocal() {
+		ANTLRLexerStateRegistry registry = ANTLRLexerStateRegistry.getInstance(OVERFLOWED);
+		Lexer lexer = new ANTLRLexerAdaptor(OVERFLOWED, new ModesLexer(null));
+		List<String> all = lex(lexer, 0, 0);
+		assertEquals(1, registry.size());
+		boolean sawLocal = false;
+		for (String token : all) {
+			int state = stateOf(token);
+			assertTrue(state <= 0);
+			sawLocal |= state < 0;
+		}
+		assertTrue(sawLocal);
+
+		// the same instance restarts from its local states, even after lexing again
+		assertEquals(all, lex(lexer, 0, 0));
+		for (int i = 0; i < all.size(); i++) {
+			assertEquals(all.subList(i, all.size()), lex(lexer, startOf(all.get(i)), stateOf(all.get(i))));
+		}
+	}
+
+	/** Another instance can't resolve a local state, and restarts in the
+	 *  initial state, as documented on getState().
+	 */
+	public void testOverflowedStatesRestartInitialElsewhere() {
+		List<String> all = lex(new ANTLRLexerAdaptor(OVERFLOWED, new ModesLexer(null)), 0, 0);
+		String local = null;
+		for (String token : all) {
+			if ( stateOf(token)<0 ) {
+				local = token;
+				break;
+			}
+		}
+		assertNotNull(local);
+
+		Lexer other = new ANTLRLexerAdaptor(OVERFLOWED, new ModesLexer(null));
+		List<String> restarted = lex(other, startOf(local), stateOf(local));
+		assertEquals(0, stateOf(restarted.get(0)));
+		assertFalse(restarted.equals(all.subList(all.indexOf(local), all.size())));
+	}
+
+	/** Tokens as "start:type@state". */
+	private static List<String> lex(Lexer lexer, int startOffset, int initialState) {
+		lexer.start(TEXT, startOffset, TEXT.length(), initialState);
+		List<String> tokens = new ArrayList<>();
+		while ( lexer.getTokenType()!=null ) {
+			tokens.add(lexer.getTokenStart() + ":" + lexer.getTokenType() + "@" + lexer.getState());
+			lexer.advance();
+		}
+		return tokens;
+	}
+
+	private static int startOf(String token) {
+		return Integer.parseInt(token.substring(0, token.indexOf(':')));
+	}
+
+	private static int stateOf(String token) {
+		return Integer.parseInt(token.substring(token.lastIndexOf('@') + 1));
+	}
+}
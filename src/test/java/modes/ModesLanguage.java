@@ -0,0 +1,12 @@
+package modes;
+
+import com.intellij.lang.Language;
+
+class ModesLanguage extends Language {
+
+	static ModesLanguage INSTANCE = new ModesLanguage();
+
+	private ModesLanguage() {
+		super("Modes");
+	}
+}
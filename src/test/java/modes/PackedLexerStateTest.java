@@ -0,0 +1,210 @@
+package modes;
+
+import com.intellij.lexer.Lexer;
+import com.intellij.testFramework.LexerTestCase;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerAdaptor;
+import org.antlr.intellij.adaptor.lexer.ANTLRLexerStateRegistry;
+import org.antlr.intellij.adaptor.lexer.ANTLRTokenBatch;
+import org.antlr.intellij.adaptor.lexer.PSIElementTypeFactory;
+import org.antlr.intellij.adaptor.lexer.TokenIElementType;
+import org.antlr.intellij.adaptor.modes.ModesLexer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+public class PackedLexerStateTest extends LexerTestCase {
+	/** Mode stacks up to three deep. */
+	private static final String SHALLOW = "a <b c=\"d {e} f\"> g <h> i";
+
+	/** Mode stacks deeper than a packed state holds. */
+	private static final String DEEP = "a <b c=\"{<d e=\"{<f g=\"h\">}\">}\"> i";
+
+	static {
+		PSIElementTypeFactory.defineLanguageIElementTypes(ModesLanguage.INSTANCE, ModesLexer.VOCABULARY, new String[0]);
+		// must be set before the first lexer of the language is created
+		ANTLRLexerStateRegistry.getInstance(ModesLanguage.INSTANCE).setPackedEncoding(true);
+	}
+
+	@Override
+	protected Lexer createLexer() {
+		return new ANTLRLexerAdaptor(ModesLanguage.INSTANCE, new ModesLexer(null));
+	}
+
+	@Override
+	protected String getDirPath() {
+		return "src/test/resources/testData/modes";
+	}
+
+	public void testShallowStatesArePacked() {
+		ANTLRLexerStateRegistry registry = ANTLRLexerStateRegistry.getInstance(ModesLanguage.INSTANCE);
+		int interned = registry.size();
+		for (Token token : lex(SHALLOW, 0, 0)) {
+			assertTrue("state " + token.state + " at " + token.start, registry.isPacked(token.state));
+		}
+		assertEquals(interned, registry.size());
+	}
+
+	public void testDeepStatesFallBackToInterning() {
+		ANTLRLexerStateRegistry registry = ANTLRLexerStateRegistry.getInstance(ModesLanguage.INSTANCE);
+		boolean sawInterned = false;
+		for (Token token : lex(DEEP, 0, 0)) {
+			assertTrue(token.state >= 0);
+			if ( !registry.isPacked(token.state) ) {
+				sawInterned = true;
+				assertNotNull(registry.getState(token.state));
+			}
+		}
+		assertTrue(sawInterned);
+	}
+
+	public void testStatesAreStableAcrossLexers() {
+		assertEquals(lex(SHALLOW, 0, 0), lex(SHALLOW, 0, 0));
+		assertEquals(lex(DEEP, 0, 0), lex(DEEP, 0, 0));
+	}
+
+	public void testRestartFromShallowStates() {
+		checkRestartFromEveryToken(SHALLOW);
+	}
+
+	public void testRestartFromDeepStates() {
+		checkRestartFromEveryToken(DEEP);
+	}
+
+	public void testTokenizeMatchesAdvance() {
+		checkTokenize(new ProbedLexerAdaptor(new ModesLexer(null)), SHALLOW);
+		checkTokenize(new ProbedLexerAdaptor(new ModesLexer(null)), DEEP);
+	}
+
+	/** A lexer holding on to tokens it has emitted mustn't have them recycled. */
+	public void testTokenizeWithQueuingLexer() {
+		ProbedLexerAdaptor lexer = new ProbedLexerAdaptor(new LookaheadModesLexer());
+		assertFalse(lexer.recyclesTokens());
+		assertTrue(new ProbedLexerAdaptor(new ModesLexer(null)).recyclesTokens());
+		checkTokenize(lexer, SHALLOW);
+		checkTokenize(lexer, DEEP);
+	}
+
+	/** tokenize() must give the tokens and states advance() does, from the
+	 *  start and restarting in the middle.
+	 */
+	private static void checkTokenize(ANTLRLexerAdaptor lexer, String text) {
+		List<int[]> expected = new ArrayList<>();
+		lexer.start(text, 0, text.length(), 0);
+		while ( lexer.getTokenType()!=null ) {
+			int type = ((TokenIElementType) lexer.getTokenType()).getANTLRTokenType();
+			expected.add(new int[]{type, lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getState()});
+			lexer.advance();
+		}
+
+		for (int from : new int[]{0, expected.size() / 2}) {
+			int[] first = expected.get(from);
+			ANTLRTokenBatch batch = new ANTLRTokenBatch(1);
+			lexer.tokenize(text, first[1], text.length(), first[3], batch);
+			assertEquals(expected.size() - from, batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				int[] token = expected.get(from + i);
+				int[] actual = {batch.getTokenType(i), batch.getTokenStart(i), batch.getTokenEnd(i), batch.getState(i)};
+				assertTrue("token " + (from + i), Arrays.equals(token, actual));
+			}
+		}
+	}
+
+	private static class ProbedLexerAdaptor extends ANTLRLexerAdaptor {
+		ProbedLexerAdaptor(org.antlr.v4.runtime.Lexer lexer) {
+			super(ModesLanguage.INSTANCE, lexer);
+		}
+
+		boolean recyclesTokens() {
+			return canRecycleTokens();
+		}
+	}
+
+	/** Lexes a token ahead, queueing emitted tokens the way lexers that
+	 *  insert INDENT and DEDENT tokens do.
+	 */
+	private static class LookaheadModesLexer extends ModesLexer {
+		private final Deque<org.antlr.v4.runtime.Token> pending = new ArrayDeque<>();
+
+		LookaheadModesLexer() {
+			super(null);
+		}
+
+		@Override
+		public void emit(org.antlr.v4.runtime.Token token) {
+			super.emit(token);
+			pending.add(token);
+		}
+
+		@Override
+		public org.antlr.v4.runtime.Token nextToken() {
+			while ( pending.size()<2 &&
+					(pending.isEmpty() || pending.peekLast().getType()!=org.antlr.v4.runtime.Token.EOF) )
+			{
+				super.nextToken();
+			}
+			return pending.poll();
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			pending.clear();
+		}
+	}
+
+	/** Restarting a fresh lexer at any token, in the state reported for it,
+	 *  must produce the same tokens as lexing from the start.
+	 */
+	private void checkRestartFromEveryToken(String text) {
+		List<Token> all = lex(text, 0, 0);
+		for (int i = 0; i < all.size(); i++) {
+			Token token = all.get(i);
+			assertEquals("restart at " + token.start, all.subList(i, all.size()), lex(text, token.start, token.state));
+		}
+	}
+
+	private List<Token> lex(String text, int startOffset, int initialState) {
+		Lexer lexer = createLexer();
+		lexer.start(text, startOffset, text.length(), initialState);
+		List<Token> tokens = new ArrayList<>();
+		while ( lexer.getTokenType()!=null ) {
+			tokens.add(new Token(lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getTokenType().toString(), lexer.getState()));
+			lexer.advance();
+		}
+		return tokens;
+	}
+
+	private static final class Token {
+		final int start;
+		final int end;
+		final String type;
+		final int state;
+
+		Token(int start, int end, String type, int state) {
+			this.start = start;
+			this.end = end;
+			this.type = type;
+			this.state = state;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( !(o instanceof Token) ) return false;
+			Token other = (Token) o;
+			return start==other.start && end==other.end && type.equals(other.type) && state==other.state;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * start + state;
+		}
+
+		@Override
+		public String toString() {
+			return type + "[" + start + "," + end + ")@" + state;
+		}
+	}
+}